@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.framing;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length prefix written as zero padded ASCII decimal digits, e.g. "0123".
+ */
+public class AsciiFrameCodec implements ISO8583FrameCodec {
+    private final int digits;
+    private static final int MAX_DIGITS = 9;
+
+    private final int maxLength;
+
+    public AsciiFrameCodec(int digits) {
+        if (digits <= 0 || digits > MAX_DIGITS) {
+            throw new IllegalArgumentException("ASCII length prefix must be 1 to " + MAX_DIGITS + " digits, got "
+                    + digits);
+        }
+        this.digits = digits;
+        int max = 1;
+        for (int i = 0; i < digits; i++) {
+            max *= 10;
+        }
+        this.maxLength = max - 1;
+    }
+
+    @Override
+    public int getPrefixLength() {
+        return digits;
+    }
+
+    @Override
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    public int decodeLength(ByteBuffer buffer, int index) throws ProtocolException {
+        int length = 0;
+        boolean hasDigits = false;
+        for (int i = index; i < index + digits; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                length = length * 10 + (b - '0');
+                hasDigits = true;
+            } else if (b != ' ') {
+                throw new ProtocolException("The length of the message was not a number");
+            }
+        }
+        if (!hasDigits) {
+            throw new ProtocolException("The length of the message was not a number");
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer, byte[] payload) {
+        if (payload.length > maxLength) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes is longer than the "
+                    + digits + " digit length prefix allows");
+        }
+        int length = payload.length;
+        int index = buffer.position();
+        for (int i = index + digits - 1; i >= index; i--) {
+            buffer.put(i, (byte) ('0' + length % 10));
+            length /= 10;
+        }
+        buffer.position(index + digits);
+        buffer.put(payload);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.framing;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length prefix written as packed BCD, two decimal digits per byte.
+ */
+public class BcdFrameCodec implements ISO8583FrameCodec {
+    private static final int MAX_PREFIX_LENGTH = 4;
+
+    private final int prefixLength;
+    private final int maxLength;
+
+    public BcdFrameCodec(int prefixLength) {
+        if (prefixLength <= 0 || prefixLength > MAX_PREFIX_LENGTH) {
+            throw new IllegalArgumentException("BCD length prefix must be 1 to " + MAX_PREFIX_LENGTH
+                    + " bytes, got " + prefixLength);
+        }
+        this.prefixLength = prefixLength;
+        int max = 1;
+        for (int i = 0; i < prefixLength * 2; i++) {
+            max *= 10;
+        }
+        this.maxLength = max - 1;
+    }
+
+    @Override
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    @Override
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    public int decodeLength(ByteBuffer buffer, int index) throws ProtocolException {
+        int length = 0;
+        for (int i = index; i < index + prefixLength; i++) {
+            int high = (buffer.get(i) >> 4) & 0x0F;
+            int low = buffer.get(i) & 0x0F;
+            if (high > 9 || low > 9) {
+                throw new ProtocolException("The length of the message was not a BCD number");
+            }
+            length = length * 100 + high * 10 + low;
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer, byte[] payload) {
+        if (payload.length > maxLength) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes is longer than the "
+                    + prefixLength + " byte BCD length prefix allows");
+        }
+        int length = payload.length;
+        int index = buffer.position();
+        for (int i = index + prefixLength - 1; i >= index; i--) {
+            int low = length % 10;
+            length /= 10;
+            int high = length % 10;
+            length /= 10;
+            buffer.put(i, (byte) ((high << 4) | low));
+        }
+        buffer.position(index + prefixLength);
+        buffer.put(payload);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.framing;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length prefix written as a 2 or 4 byte unsigned big-endian integer.
+ */
+public class BinaryFrameCodec implements ISO8583FrameCodec {
+    private final int prefixLength;
+
+    public BinaryFrameCodec(int prefixLength) {
+        if (prefixLength != 2 && prefixLength != 4) {
+            throw new IllegalArgumentException("Binary length prefix must be 2 or 4 bytes, got " + prefixLength);
+        }
+        this.prefixLength = prefixLength;
+    }
+
+    @Override
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    @Override
+    public int getMaxLength() {
+        return prefixLength == 2 ? 0xFFFF : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int decodeLength(ByteBuffer buffer, int index) throws ProtocolException {
+        if (prefixLength == 2) {
+            return ((buffer.get(index) & 0xFF) << 8) | (buffer.get(index + 1) & 0xFF);
+        }
+        int length = buffer.getInt(index);
+        if (length < 0) {
+            throw new ProtocolException("Negative message length " + length);
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer, byte[] payload) {
+        if (payload.length > getMaxLength()) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes is longer than the "
+                    + prefixLength + " byte length prefix allows");
+        }
+        if (prefixLength == 2) {
+            buffer.put((byte) (payload.length >>> 8));
+            buffer.put((byte) payload.length);
+        } else {
+            buffer.putInt(payload.length);
+        }
+        buffer.put(payload);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.framing;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * SPI for the length prefix that delimits ISO8583 messages on a stream.
+ * Implementations read and write the prefix directly in the given buffers.
+ */
+public interface ISO8583FrameCodec {
+
+    /**
+     * @return the number of bytes of the length prefix.
+     */
+    int getPrefixLength();
+
+    /**
+     * @return the largest payload length the prefix can express.
+     */
+    int getMaxLength();
+
+    /**
+     * Decode the payload length from the prefix without moving the buffer position.
+     *
+     * @param buffer buffer holding at least {@link #getPrefixLength()} bytes from index
+     * @param index  absolute index of the first prefix byte
+     * @return the length of the payload following the prefix
+     * @throws ProtocolException if the prefix is not a valid length
+     */
+    int decodeLength(ByteBuffer buffer, int index) throws ProtocolException;
+
+    /**
+     * Write the prefix and the payload at the current buffer position.
+     *
+     * @param buffer  buffer with at least {@link #getPrefixLength()} + payload length bytes remaining
+     * @param payload the packed ISO message
+     * @throws IllegalArgumentException if the payload is longer than {@link #getMaxLength()}
+     */
+    void encode(ByteBuffer buffer, byte[] payload);
+}
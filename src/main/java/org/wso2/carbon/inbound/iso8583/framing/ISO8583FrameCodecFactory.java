@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.framing;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.SynapseException;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+
+import java.util.Properties;
+
+/**
+ * class for get the ISO8583FrameCodec configured for an inbound endpoint.
+ */
+public class ISO8583FrameCodecFactory {
+    private static final Log log = LogFactory.getLog(ISO8583FrameCodecFactory.class);
+
+    /**
+     * Get the frame codec from the inbound parameters.
+     *
+     * @param properties     the inbound parameters
+     * @param defaultFraming framing used when the endpoint does not declare one
+     * @return the frame codec, or null if messages are not length prefixed
+     */
+    public static ISO8583FrameCodec getCodec(Properties properties, String defaultFraming) {
+        String framing = properties.getProperty(ISO8583Constant.INBOUND_FRAMING, defaultFraming);
+        String framingLength = properties.getProperty(ISO8583Constant.INBOUND_FRAMING_LENGTH);
+        try {
+            if (ISO8583Constant.FRAMING_NONE.equalsIgnoreCase(framing)) {
+                return null;
+            } else if (ISO8583Constant.FRAMING_ASCII.equalsIgnoreCase(framing)) {
+                return new AsciiFrameCodec(getLength(framingLength, 4));
+            } else if (ISO8583Constant.FRAMING_BINARY.equalsIgnoreCase(framing)) {
+                return new BinaryFrameCodec(getLength(framingLength, 2));
+            } else if (ISO8583Constant.FRAMING_BCD.equalsIgnoreCase(framing)) {
+                return new BcdFrameCodec(getLength(framingLength, 2));
+            } else if (ISO8583Constant.FRAMING_TPDU.equalsIgnoreCase(framing)) {
+                int tpduLength = getLength(properties.getProperty(ISO8583Constant.INBOUND_TPDU_LENGTH),
+                        Integer.parseInt(ISO8583Constant.TPDU_LENGTH));
+                boolean swap = Boolean.parseBoolean(properties.getProperty(ISO8583Constant.INBOUND_TPDU_SWAP,
+                        "true"));
+                return new TpduFrameCodec(new BinaryFrameCodec(getLength(framingLength, 2)), tpduLength, swap);
+            }
+        } catch (NumberFormatException e) {
+            handleException("The framing length is not a parsable integer", e);
+        } catch (IllegalArgumentException e) {
+            handleException(e.getMessage(), e);
+        }
+        handleException("Unknown framing: " + framing, null);
+        return null;
+    }
+
+    /**
+     * Get the largest message accepted from a client.
+     *
+     * @param properties the inbound parameters
+     * @param codec      the frame codec of the endpoint
+     */
+    public static int getMaxMessageLength(Properties properties, ISO8583FrameCodec codec) {
+        int maxLength = Integer.parseInt(ISO8583Constant.MAX_MESSAGE_LENGTH);
+        try {
+            maxLength = getLength(properties.getProperty(ISO8583Constant.INBOUND_MAX_MESSAGE_LENGTH), maxLength);
+        } catch (NumberFormatException e) {
+            handleException("The maxMessageLength is not a parsable integer", e);
+        }
+        return codec == null ? maxLength : Math.min(maxLength, codec.getMaxLength());
+    }
+
+    private static int getLength(String value, int defaultValue) {
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * handle the Exception
+     *
+     * @param msg error message
+     * @param e   an Exception
+     */
+    private static void handleException(String msg, Exception e) {
+        log.error(msg, e);
+        throw new SynapseException(msg);
+    }
+}
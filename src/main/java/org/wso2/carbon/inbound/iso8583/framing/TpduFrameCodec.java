@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.framing;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length prefix followed by a TPDU routing header, as used by most POS networks.
+ * The TPDU stays at the front of the payload so the packager reads it as the ISO header
+ * (set headerLength to the TPDU length). On the way out the destination and origin
+ * addresses of the TPDU are swapped so the response is routed back to the terminal.
+ */
+public class TpduFrameCodec implements ISO8583FrameCodec {
+    private final ISO8583FrameCodec lengthCodec;
+    private final int tpduLength;
+    private final boolean swapAddresses;
+
+    public TpduFrameCodec(ISO8583FrameCodec lengthCodec, int tpduLength, boolean swapAddresses) {
+        this.lengthCodec = lengthCodec;
+        this.tpduLength = tpduLength;
+        this.swapAddresses = swapAddresses;
+    }
+
+    @Override
+    public int getPrefixLength() {
+        return lengthCodec.getPrefixLength();
+    }
+
+    @Override
+    public int getMaxLength() {
+        return lengthCodec.getMaxLength();
+    }
+
+    @Override
+    public int decodeLength(ByteBuffer buffer, int index) throws ProtocolException {
+        int length = lengthCodec.decodeLength(buffer, index);
+        if (length < tpduLength) {
+            throw new ProtocolException("Message of " + length + " bytes is shorter than the TPDU");
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer, byte[] payload) {
+        if (payload.length > getMaxLength()) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes is longer than the "
+                    + getPrefixLength() + " byte length prefix allows");
+        }
+        int index = buffer.position() + lengthCodec.getPrefixLength();
+        lengthCodec.encode(buffer, payload);
+        if (swapAddresses && tpduLength >= 5 && payload.length >= tpduLength) {
+            // TPDU layout: id(1) destination(2) origin(2)
+            buffer.put(index + 1, payload[3]);
+            buffer.put(index + 2, payload[4]);
+            buffer.put(index + 3, payload[1]);
+            buffer.put(index + 4, payload[2]);
+        }
+    }
+}
@@ -20,15 +20,22 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.SynapseException;
 import org.apache.synapse.inbound.InboundProcessorParams;
+import org.apache.axiom.om.OMElement;
 import org.jpos.iso.ISOException;
-import org.jpos.iso.ISOMsg;
-import org.jpos.iso.ISOPackager;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583MessageBuilder;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Class for handling the iso message request.
@@ -36,16 +43,40 @@ import java.util.Arrays;
 public class ConnectionRequestHandler implements Runnable {
     private static final Log log = LogFactory.getLog(ConnectionRequestHandler.class);
     private Socket connection;
-    private ISOPackager packager;
+    private ISO8583PackagerSelector packagerSelector;
+    private Map<String, ISO8583MessageBuilder> messageBuilders = new HashMap<String, ISO8583MessageBuilder>();
+    private boolean deferred;
+    private boolean headerView;
+    private boolean json;
     private ISO8583MessageInject msgInject;
     private DataInputStream inputStreamReader;
     private DataOutputStream outToClient;
+    private ISO8583FrameCodec codec;
+    private int maxMessageLength;
+    private boolean persistent;
+    private int idleTimeout;
+    private ByteBuffer prefix;
 
-    public ConnectionRequestHandler(Socket connection, InboundProcessorParams params) {
+    /**
+     * @param codec       length prefix of the messages, null to read whatever is available
+     * @param persistent  whether to keep reading messages until the client closes the connection
+     * @param idleTimeout milliseconds a persistent connection may stay idle, 0 to wait forever
+     */
+    public ConnectionRequestHandler(Socket connection, InboundProcessorParams params, ISO8583FrameCodec codec,
+                                    int maxMessageLength, boolean persistent, int idleTimeout) {
         try {
             this.connection = connection;
-            this.packager = ISO8583PackagerFactory.getPackagerWithParams(params);
-            this.msgInject = new ISO8583MessageInject(params, connection);
+            this.codec = codec;
+            this.maxMessageLength = maxMessageLength;
+            this.persistent = persistent;
+            this.idleTimeout = idleTimeout;
+            String payloadMode = params.getProperties().getProperty(ISO8583Constant.INBOUND_PAYLOAD_MODE);
+            this.deferred = ISO8583Constant.PAYLOAD_MODE_DEFERRED.equalsIgnoreCase(payloadMode);
+            this.json = ISO8583Constant.PAYLOAD_MODE_JSON.equalsIgnoreCase(payloadMode);
+            this.headerView = Boolean.parseBoolean(params.getProperties().getProperty(
+                    ISO8583Constant.INBOUND_HEADER_VIEW, ISO8583Constant.HEADER_VIEW));
+            this.packagerSelector = ISO8583PackagerSelector.getSelector(params);
+            this.msgInject = new ISO8583MessageInject(params, connection, codec);
             this.inputStreamReader = new DataInputStream(connection.getInputStream());
             this.outToClient = new DataOutputStream(connection.getOutputStream());
         } catch (IOException e) {
@@ -57,16 +88,59 @@ public class ConnectionRequestHandler implements Runnable {
      * connect method for read the request from inputStreamReader and inject into sequence.
      */
     public void connect() throws IOException {
-        if (connection.isConnected() && inputStreamReader.available() >0) {
+        if (codec != null && persistent) {
+            connection.setSoTimeout(idleTimeout);
+            while (connection.isConnected() && !connection.isClosed()) {
+                byte[] message;
+                try {
+                    message = readFrame();
+                } catch (EOFException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Client closed the connection " + connection);
+                    }
+                    return;
+                } catch (SocketTimeoutException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Closing connection " + connection + " idle for " + idleTimeout + " ms");
+                    }
+                    return;
+                }
+                injectRequest(message);
+            }
+        } else if (codec != null) {
+            if (connection.isConnected()) {
+                byte[] message = readFrame();
+                injectRequest(message);
+            }
+        } else if (connection.isConnected() && inputStreamReader.available() >0) {
             int messageLength = inputStreamReader.available();
             byte[] message = new byte[messageLength];
             inputStreamReader.readFully(message, 0, messageLength);
-            ISOMsg isoMessage = unpackRequest(message);
-            msgInject.inject(isoMessage);
+            injectRequest(message);
 
         }
     }
 
+    /**
+     * read one length prefixed message from the inputStreamReader.
+     *
+     * @return the message without its length prefix
+     */
+    private byte[] readFrame() throws IOException {
+        if (prefix == null) {
+            prefix = ByteBuffer.allocate(codec.getPrefixLength());
+        }
+        inputStreamReader.readFully(prefix.array());
+        int messageLength = codec.decodeLength(prefix, 0);
+        if (messageLength > maxMessageLength) {
+            throw new ProtocolException("Message length " + messageLength + " exceeds the maximum of "
+                    + maxMessageLength);
+        }
+        byte[] message = new byte[messageLength];
+        inputStreamReader.readFully(message);
+        return message;
+    }
+
     public void run() {
         try {
             connect();
@@ -83,28 +157,53 @@ public class ConnectionRequestHandler implements Runnable {
     }
 
     /**
-     * unpack the string iso message to obtain its fields.
+     * inject the packed request into the sequence as an xml or json iso message.
      *
      * @param message String ISOMessage
      */
-    private ISOMsg unpackRequest(byte[] message) {
-        ISOMsg isoMsg = null;
+    private void injectRequest(byte[] message) {
+        String packagerKey = packagerSelector.select(message);
+        ISO8583MessageBuilder messageBuilder = getMessageBuilder(packagerKey);
         try {
-            isoMsg = new ISOMsg();
-            isoMsg.setPackager(packager);
-            isoMsg.unpack(message);
+            if (json) {
+                msgInject.injectJson(messageBuilder.buildJson(message), messageBuilder.getHeader(message),
+                        packagerKey);
+            } else {
+                msgInject.inject(messageBuilder.build(message), messageBuilder.getHeader(message), packagerKey);
+            }
         } catch (ISOException e) {
             handleISOException(Arrays.toString(message), e);
         }
-        return isoMsg;
     }
 
     /**
-     * handle the ISOMessage which is not in the ISO Standard.
+     * get the message builder of a packager definition, the builders are kept for the
+     * next messages on the connection.
+     *
+     * @param packagerKey the key of the packager definition
+     */
+    private ISO8583MessageBuilder getMessageBuilder(String packagerKey) {
+        ISO8583MessageBuilder messageBuilder = messageBuilders.get(packagerKey);
+        if (messageBuilder == null) {
+            messageBuilder = new ISO8583MessageBuilder(packagerSelector.getPackager(packagerKey), deferred,
+                    headerView);
+            messageBuilders.put(packagerKey, messageBuilder);
+        }
+        return messageBuilder;
+    }
+
+    /**
+     * handle the ISOMessage which is not in the ISO Standard. On a framed connection the
+     * bad frame is skipped and the connection stays open, writing unframed text into the
+     * stream would break the framing of the peer.
      *
      * @param message String ISOMessage
      */
     private void handleISOException(String message, ISOException e) {
+        if (codec != null) {
+            log.error("Skipping a message from " + connection + " that is not in ISO Standard: " + message, e);
+            return;
+        }
         try {
             outToClient.writeBytes("Request ISO message is not in ISO Standard :" + message);
             handleException("Couldn't unpack the message since financial message is not in ISO Standard", e);
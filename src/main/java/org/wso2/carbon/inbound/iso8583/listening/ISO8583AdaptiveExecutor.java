@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.inbound.iso8583.listening;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.SynapseException;
+
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker pool that sizes itself at runtime instead of using fixed thread counts. Every
+ * adjustment interval the controller measures how long tasks waited in the queue, the
+ * throughput and the time the threads were busy. By Little's law the busy time divided by
+ * the interval is the concurrency the load needed. While tasks wait longer than the target
+ * queueing delay, the pool grows in proportion to how far the delay is over the target. The
+ * growth is capped at the threads the arrivals and the queued backlog need. If
+ * the last increase gave no gain in throughput, the pool holds its size, because the
+ * bottleneck is downstream. Once the queue is empty the pool shrinks towards the needed
+ * concurrency. The size stays between the configured floor and ceiling. The adjustments
+ * run on the threads that submit and complete tasks, so the controller has no thread of its own.
+ */
+public class ISO8583AdaptiveExecutor extends ThreadPoolExecutor {
+    private static final Log log = LogFactory.getLog(ISO8583AdaptiveExecutor.class);
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+    private static final double MAX_GROWTH = 2.0;
+    private static final double HEADROOM = 1.25;
+    private static final double MIN_GAIN = 1.05;
+
+    private final String name;
+    private final int floor;
+    private final int ceiling;
+    private final long targetDelayNanos;
+    private final AtomicBoolean adjusting = new AtomicBoolean();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+    private volatile long nextAdjust = System.nanoTime() + ADJUST_INTERVAL_NANOS;
+    private volatile long lastAdjust = System.nanoTime();
+    private volatile int limit;
+    private volatile long queueDelayNanos;
+    private volatile double throughput;
+    private volatile double concurrency;
+    private boolean lastIncreased;
+    private double throughputBeforeIncrease;
+
+    /**
+     * A task with the time it was queued and the time it started.
+     */
+    private static final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long queued = System.nanoTime();
+        private long started;
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    public ISO8583AdaptiveExecutor(String name, int floor, int ceiling, long keepAliveSeconds, int queueLength,
+                                   long targetDelayMillis) {
+        super(floor, floor, keepAliveSeconds, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueLength));
+        this.name = name;
+        this.floor = floor;
+        this.ceiling = ceiling;
+        this.limit = floor;
+        this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(targetDelayMillis);
+        // threads above the current need time out instead of waiting for work
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return whether the listener uses the adaptive pool, either configured with the
+     * executorMode or because none of the fixed pool settings is given
+     */
+    public static boolean isAdaptive(Properties properties) {
+        String executorMode = properties.getProperty(ISO8583Constant.INBOUND_EXECUTOR_MODE);
+        if (executorMode != null) {
+            return ISO8583Constant.EXECUTOR_MODE_ADAPTIVE.equalsIgnoreCase(executorMode);
+        }
+        return StringUtils.isEmpty(properties.getProperty(ISO8583Constant.INBOUND_CORE_THREADS))
+                && StringUtils.isEmpty(properties.getProperty(ISO8583Constant.INBOUND_MAX_THREADS))
+                && StringUtils.isEmpty(properties.getProperty(ISO8583Constant.INBOUND_THREAD_ALIVE))
+                && StringUtils.isEmpty(properties.getProperty(ISO8583Constant.INBOUND_THREAD_QLEN));
+    }
+
+    /**
+     * create the worker pool of a listener, the adaptive pool or a fixed pool built from the
+     * thread settings. Settings that are not given take their defaults.
+     *
+     * @param name       the name of the listener, for the log
+     * @param properties the inbound parameters
+     * @return the worker pool
+     * @throws SynapseException if a setting is not a number or the limits don't fit together
+     */
+    public static ExecutorService createWorkerPool(String name, Properties properties) {
+        try {
+            if (isAdaptive(properties)) {
+                return create(name, properties);
+            }
+            int coreThreads = Integer.parseInt(getThreadProperty(properties, ISO8583Constant.INBOUND_CORE_THREADS,
+                    ISO8583Constant.CORE_THREADS));
+            // a larger core than the default maximum raises the maximum with it
+            int maxThreads = Integer.parseInt(getThreadProperty(properties, ISO8583Constant.INBOUND_MAX_THREADS,
+                    String.valueOf(Math.max(coreThreads, Integer.parseInt(ISO8583Constant.MAX_THREADS)))));
+            int keepAlive = Integer.parseInt(getThreadProperty(properties, ISO8583Constant.INBOUND_THREAD_ALIVE,
+                    ISO8583Constant.KEEP_ALIVE));
+            int queueLength = Integer.parseInt(getThreadProperty(properties, ISO8583Constant.INBOUND_THREAD_QLEN,
+                    ISO8583Constant.THREAD_QLEN));
+            if (coreThreads < 0 || maxThreads <= 0 || maxThreads < coreThreads || keepAlive < 0
+                    || queueLength <= 0) {
+                throw new SynapseException("The thread settings must be 0 <= coreThreads <= maxThreads, "
+                        + "0 < maxThreads, 0 <= keepAlive and 0 < queueLength, got " + coreThreads + ", "
+                        + maxThreads + ", " + keepAlive + " and " + queueLength);
+            }
+            return new ThreadPoolExecutor(coreThreads, maxThreads, keepAlive, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueLength));
+        } catch (NumberFormatException e) {
+            log.error("One of the property or properties of thread specified is of an invalid type", e);
+            throw new SynapseException("One of the property or properties of thread specified is of an invalid type");
+        }
+    }
+
+    private static String getThreadProperty(Properties properties, String name, String defaultValue) {
+        String value = properties.getProperty(name);
+        return StringUtils.isEmpty(value) ? defaultValue : value.trim();
+    }
+
+    /**
+     * create the adaptive pool of a listener. coreThreads and maxThreads are the floor and
+     * the ceiling of the pool size.
+     *
+     * @throws NumberFormatException if one of the settings is not a number
+     */
+    public static ISO8583AdaptiveExecutor create(String name, Properties properties) {
+        int floor = Integer.parseInt(properties.getProperty(ISO8583Constant.INBOUND_CORE_THREADS,
+                ISO8583Constant.ADAPTIVE_CORE_THREADS));
+        int ceiling = Integer.parseInt(properties.getProperty(ISO8583Constant.INBOUND_MAX_THREADS,
+                ISO8583Constant.ADAPTIVE_MAX_THREADS));
+        long keepAlive = Long.parseLong(properties.getProperty(ISO8583Constant.INBOUND_THREAD_ALIVE,
+                ISO8583Constant.ADAPTIVE_KEEP_ALIVE));
+        int queueLength = Integer.parseInt(properties.getProperty(ISO8583Constant.INBOUND_THREAD_QLEN,
+                ISO8583Constant.ADAPTIVE_THREAD_QLEN));
+        long targetDelay = Long.parseLong(properties.getProperty(ISO8583Constant.INBOUND_TARGET_QUEUE_DELAY,
+                ISO8583Constant.TARGET_QUEUE_DELAY));
+        if (floor <= 0 || ceiling < floor) {
+            throw new SynapseException("The thread limits of the adaptive pool must be 0 < coreThreads <= "
+                    + "maxThreads, got " + floor + " and " + ceiling);
+        }
+        return new ISO8583AdaptiveExecutor(name, floor, ceiling, keepAlive, queueLength, targetDelay);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        adjustIfDue();
+        submitted.incrementAndGet();
+        super.execute(new TimedTask(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+        if (runnable instanceof TimedTask) {
+            TimedTask task = (TimedTask) runnable;
+            task.started = System.nanoTime();
+            waitNanos.addAndGet(task.started - task.queued);
+            started.incrementAndGet();
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable throwable) {
+        super.afterExecute(runnable, throwable);
+        if (runnable instanceof TimedTask) {
+            busyNanos.addAndGet(System.nanoTime() - ((TimedTask) runnable).started);
+            completed.incrementAndGet();
+        }
+        adjustIfDue();
+    }
+
+    private void adjustIfDue() {
+        long now = System.nanoTime();
+        if (now - nextAdjust < 0 || !adjusting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            adjust(now);
+        } finally {
+            nextAdjust = now + ADJUST_INTERVAL_NANOS;
+            adjusting.set(false);
+        }
+    }
+
+    /**
+     * measure the last interval and resize the pool.
+     */
+    private void adjust(long now) {
+        long interval = Math.max(now - lastAdjust, 1);
+        lastAdjust = now;
+        long submittedTasks = submitted.getAndSet(0);
+        long startedTasks = started.getAndSet(0);
+        long waited = waitNanos.getAndSet(0);
+        long busy = busyNanos.getAndSet(0);
+        long completedTasks = completed.getAndSet(0);
+
+        // tasks stuck behind busy threads don't start, so the wait of the oldest one counts too
+        long delay = startedTasks > 0 ? waited / startedTasks : 0;
+        Runnable head = getQueue().peek();
+        if (head instanceof TimedTask) {
+            delay = Math.max(delay, now - ((TimedTask) head).queued);
+        }
+        queueDelayNanos = delay;
+        throughput = completedTasks * 1e9 / interval;
+        // Little's law, threads still running a task are busy whatever the completions say
+        concurrency = Math.max((double) busy / interval, getActiveCount());
+
+        int current = limit;
+        int next = current;
+        if (delay > targetDelayNanos) {
+            boolean noGain = lastIncreased && throughputBeforeIncrease > 0
+                    && throughput < throughputBeforeIncrease * MIN_GAIN;
+            if (noGain) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Worker pool " + name + " holds at " + current + " threads, the last increase gave "
+                            + "no more throughput");
+                }
+            } else {
+                double gradient = Math.min((double) delay / Math.max(targetDelayNanos, 1), MAX_GROWTH);
+                next = (int) Math.ceil(current * gradient);
+                if (completedTasks > 0) {
+                    // threads for the arrivals plus the threads clearing the backlog in one interval
+                    double serviceNanos = (double) busy / completedTasks;
+                    double needed = submittedTasks * serviceNanos / interval * HEADROOM
+                            + getQueue().size() * serviceNanos / ADJUST_INTERVAL_NANOS;
+                    next = Math.min(next, (int) Math.ceil(needed));
+                }
+                next = Math.max(next, current + 1);
+            }
+        } else if (getQueue().isEmpty() && delay < targetDelayNanos / 2) {
+            // step half way down to the needed concurrency, so a short lull doesn't drain the pool
+            int needed = (int) Math.ceil(concurrency * HEADROOM);
+            next = Math.max(needed, current - Math.max((current - needed) / 2, 1));
+        }
+        next = Math.min(Math.max(next, floor), ceiling);
+        lastIncreased = next > current;
+        if (lastIncreased) {
+            throughputBeforeIncrease = throughput;
+        }
+        if (next != current) {
+            resize(next);
+            if (next > current) {
+                increases.incrementAndGet();
+            } else {
+                decreases.incrementAndGet();
+            }
+            log.info("Worker pool " + name + " resized from " + current + " to " + next + " threads, queue delay: "
+                    + TimeUnit.NANOSECONDS.toMillis(delay) + " ms, throughput: " + Math.round(throughput)
+                    + "/s, busy threads: " + String.format(Locale.ROOT, "%.1f", concurrency));
+        } else if (log.isDebugEnabled()) {
+            log.debug("Worker pool " + name + " stays at " + current + " threads, queue delay: "
+                    + TimeUnit.NANOSECONDS.toMillis(delay) + " ms, throughput: " + Math.round(throughput)
+                    + "/s, busy threads: " + String.format(Locale.ROOT, "%.1f", concurrency));
+        }
+    }
+
+    private void resize(int size) {
+        limit = size;
+        // the core size may never exceed the maximum size
+        if (size > getMaximumPoolSize()) {
+            setMaximumPoolSize(size);
+            setCorePoolSize(size);
+        } else {
+            setCorePoolSize(size);
+            setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * @return the number of threads the controller currently allows.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getFloor() {
+        return floor;
+    }
+
+    public int getCeiling() {
+        return ceiling;
+    }
+
+    /**
+     * @return the queueing delay measured in the last interval, in milliseconds.
+     */
+    public long getQueueDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(queueDelayNanos);
+    }
+
+    /**
+     * @return the tasks completed per second in the last interval.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return the average number of busy threads in the last interval.
+     */
+    public double getConcurrency() {
+        return concurrency;
+    }
+
+    public long getIncreases() {
+        return increases.get();
+    }
+
+    public long getDecreases() {
+        return decreases.get();
+    }
+}
@@ -38,10 +38,80 @@ public class ISO8583Constant {
     public static final String INBOUND_HEADER_LENGTH = "headerLength";
     public static final String INBOUND_ACT_AS_PROXY = "isProxy";
     public final static String ISO8583_INBOUND_MSG_ID = "ISO8583_INBOUND_MSG_ID";
+    public final static String ISO8583_HEADER = "ISO8583_HEADER";
+    public static final String INBOUND_HEADER_VIEW = "headerView";
+    public static final String HEADER_VIEW = "false";
     public final static String PROPERTIES_FILE = "config.properties";
     public static final String RESPONSE_FIELD = "responseField";
     public static final String SUCCESSFUL_RESPONSE_CODE = "successfulResponseCode";
     public static final String FAILURE_RESPONSE_CODE = "failureResponseCode";
-    public static final Object REQUEST_MTI = "requestMTI";
-    public static final Object RESPONSE_MTI = "responseMTI";
+    public static final String REQUEST_MTI = "requestMTI";
+    public static final String RESPONSE_MTI = "responseMTI";
+    public static final String INBOUND_FRAMING = "framing";
+    public static final String INBOUND_FRAMING_LENGTH = "framingLength";
+    public static final String INBOUND_TPDU_LENGTH = "tpduLength";
+    public static final String INBOUND_TPDU_SWAP = "tpduSwapAddresses";
+    public static final String INBOUND_MAX_MESSAGE_LENGTH = "maxMessageLength";
+    public static final String FRAMING_NONE = "none";
+    public static final String FRAMING_ASCII = "ascii";
+    public static final String FRAMING_BINARY = "binary";
+    public static final String FRAMING_BCD = "bcd";
+    public static final String FRAMING_TPDU = "tpdu";
+    public static final String TPDU_LENGTH = "5";
+    public static final String MAX_MESSAGE_LENGTH = "65535";
+    public static final String INBOUND_WHITE_LIST = "whiteList";
+    public static final String INBOUND_IO_THREADS = "ioThreads";
+    public static final String INBOUND_IO_LOOP_SELECTION = "ioLoopSelection";
+    public static final String IO_THREADS = "0";
+    public static final String IO_LOOP_ROUND_ROBIN = "roundRobin";
+    public static final String IO_LOOP_LEAST_LOADED = "leastLoaded";
+    public static final String INBOUND_IO_MODE = "ioMode";
+    public static final String IO_MODE_SELECTOR = "selector";
+    public static final String IO_MODE_ASYNC = "async";
+    public static final String INBOUND_PERSISTENT_CONNECTION = "persistentConnection";
+    public static final String INBOUND_IDLE_TIMEOUT = "idleTimeout";
+    public static final String IDLE_TIMEOUT = "0";
+    public static final String INBOUND_EXECUTOR_MODE = "executorMode";
+    public static final String EXECUTOR_MODE_POOL = "pool";
+    public static final String EXECUTOR_MODE_VIRTUAL = "virtual";
+    public static final String EXECUTOR_MODE_ADAPTIVE = "adaptive";
+    public static final String ADAPTIVE_CORE_THREADS = "2";
+    public static final String ADAPTIVE_MAX_THREADS = "200";
+    public static final String ADAPTIVE_KEEP_ALIVE = "60";
+    public static final String ADAPTIVE_THREAD_QLEN = "1000";
+    public static final String INBOUND_TARGET_QUEUE_DELAY = "targetQueueDelay";
+    public static final String TARGET_QUEUE_DELAY = "20";
+    public static final String INBOUND_MAX_CONNECTIONS = "maxConnections";
+    public static final String MAX_CONNECTIONS = "10000";
+    public static final String INBOUND_PAYLOAD_MODE = "payloadMode";
+    public static final String PAYLOAD_MODE_XML = "xml";
+    public static final String PAYLOAD_MODE_DEFERRED = "deferred";
+    public static final String PAYLOAD_MODE_JSON = "json";
+    public final static String ISO8583_PACKAGER = "ISO8583_PACKAGER";
+    public static final String INBOUND_PACKAGERS = "packagers";
+    public static final String INBOUND_PACKAGER_SELECTOR = "packagerSelector";
+    public static final String PACKAGER_SELECTOR_MTI = "mti";
+    public static final String PACKAGER_SELECTOR_HEADER = "header";
+    public static final String PACKAGER_SELECTOR_NII = "nii";
+    public static final String INBOUND_HIGH_WATERMARK = "highWatermark";
+    public static final String INBOUND_LOW_WATERMARK = "lowWatermark";
+    public static final String INBOUND_OVERLOAD_POLICY = "overloadPolicy";
+    public static final String OVERLOAD_POLICY_PAUSE = "pause";
+    public static final String OVERLOAD_POLICY_DECLINE = "decline";
+    public static final String SYSTEM_BUSY_RESPONSE_CODE = "91";
+    public static final String INBOUND_ORDERED_EXECUTION = "orderedExecution";
+    public static final String ORDERED_EXECUTION = "true";
+    public static final String INBOUND_CORRELATION_FIELDS = "correlationFields";
+    public static final String INBOUND_CORRELATION_TIMEOUT = "correlationTimeout";
+    public static final String CORRELATION_TIMEOUT = "30000";
+    public static final String INBOUND_IDLE_POLICY = "idlePolicy";
+    public static final String IDLE_POLICY_CLOSE = "close";
+    public static final String IDLE_POLICY_ECHO = "echo";
+    public static final String ECHO_MTI = "0800";
+    public static final String ECHO_TEST_CODE = "301";
+    public static final String INBOUND_RESPONSE_TIMEOUT = "responseTimeout";
+    public static final String RESPONSE_TIMEOUT = "0";
+    public static final String INBOUND_TIMEOUT_RESPONSE_CODE = "timeoutResponseCode";
+    public static final String TIMEOUT_RESPONSE_CODE = "68";
+    public final static String ISO8583_RESPONSE_TIMEOUT = "ISO8583_RESPONSE_TIMEOUT";
 }
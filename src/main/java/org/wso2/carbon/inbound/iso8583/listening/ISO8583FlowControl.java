@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.listening;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.SynapseException;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flow control of a listener tied to the capacity of its worker pool. Every task handed to
+ * the pool is counted until it completes; when the count reaches the high watermark the
+ * listener is paused and it is resumed once the count drops to the low watermark. The
+ * blocking listener stops accepting connections while paused, the NIO listener stops
+ * reading from its sessions, or with the decline policy answers new requests with a
+ * "system busy" response instead.
+ */
+public class ISO8583FlowControl {
+    private static final Log log = LogFactory.getLog(ISO8583FlowControl.class);
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final boolean decline;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<Runnable> pausedReaders = new ConcurrentLinkedQueue<Runnable>();
+    private final Object lock = new Object();
+    private volatile boolean paused;
+
+    public ISO8583FlowControl(int highWatermark, int lowWatermark, boolean decline) {
+        if (highWatermark <= 0 || lowWatermark < 0 || lowWatermark >= highWatermark) {
+            throw new SynapseException("The watermarks must be 0 <= lowWatermark < highWatermark, got "
+                    + lowWatermark + " and " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.decline = decline;
+    }
+
+    /**
+     * create the flow control of a worker pool from the inbound parameters.
+     *
+     * @param properties the inbound parameters
+     * @param threadPool the worker pool of the listener
+     * @return the flow control, or null if the pool is unbounded and no highWatermark is set
+     */
+    public static ISO8583FlowControl create(Properties properties, ExecutorService threadPool) {
+        int capacity = -1;
+        if (threadPool instanceof ISO8583AdaptiveExecutor) {
+            // the adaptive pool may grow up to its ceiling
+            ISO8583AdaptiveExecutor executor = (ISO8583AdaptiveExecutor) threadPool;
+            capacity = executor.getCeiling() + executor.getQueue().remainingCapacity();
+        } else if (threadPool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) threadPool;
+            capacity = executor.getMaximumPoolSize() + executor.getQueue().remainingCapacity();
+        }
+        String high = properties.getProperty(ISO8583Constant.INBOUND_HIGH_WATERMARK);
+        String low = properties.getProperty(ISO8583Constant.INBOUND_LOW_WATERMARK);
+        boolean decline = ISO8583Constant.OVERLOAD_POLICY_DECLINE.equalsIgnoreCase(
+                properties.getProperty(ISO8583Constant.INBOUND_OVERLOAD_POLICY));
+        try {
+            int highWatermark = high != null ? Integer.parseInt(high) : capacity;
+            if (highWatermark <= 0 || highWatermark == Integer.MAX_VALUE) {
+                return null;
+            }
+            int lowWatermark = low != null ? Integer.parseInt(low) : highWatermark / 2;
+            if (log.isDebugEnabled()) {
+                log.debug("Pausing the listener at " + highWatermark + " requests in flight, resuming at "
+                        + lowWatermark);
+            }
+            return new ISO8583FlowControl(highWatermark, lowWatermark, decline);
+        } catch (NumberFormatException e) {
+            log.error("The watermarks are not parsable integers", e);
+            throw new SynapseException("The watermarks are not parsable integers");
+        }
+    }
+
+    /**
+     * @return whether requests are declined instead of pausing the reads
+     */
+    public boolean isDecline() {
+        return decline;
+    }
+
+    /**
+     * @return whether the listener is paused, until the low watermark is reached
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * count a task handed to the worker pool.
+     */
+    public void begin() {
+        if (inFlight.incrementAndGet() >= highWatermark && !paused) {
+            // the count is checked again under the lock, the tasks may have completed meanwhile
+            boolean resumed = false;
+            synchronized (lock) {
+                if (paused || inFlight.get() < highWatermark) {
+                    return;
+                }
+                paused = true;
+                // a task that completed before paused was set didn't resume, so check for it here
+                if (inFlight.get() <= lowWatermark) {
+                    paused = false;
+                    resumed = true;
+                }
+            }
+            if (resumed) {
+                resumeReaders();
+                return;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Worker pool reached the high watermark of " + highWatermark + ", pausing the listener");
+            }
+        }
+    }
+
+    /**
+     * count a task that completed or was not taken by the worker pool, resuming the
+     * listener at the low watermark.
+     */
+    public void end() {
+        if (inFlight.decrementAndGet() <= lowWatermark && paused) {
+            synchronized (lock) {
+                if (!paused || inFlight.get() > lowWatermark) {
+                    return;
+                }
+                paused = false;
+                lock.notifyAll();
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Worker pool dropped to the low watermark of " + lowWatermark + ", resuming the listener");
+            }
+            resumeReaders();
+        }
+    }
+
+    /**
+     * wrap a task so it is counted until it completes. {@link #begin()} must be called
+     * before the task is handed to the pool.
+     */
+    public Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    end();
+                }
+            }
+        };
+    }
+
+    /**
+     * wait until the listener is resumed.
+     */
+    public void awaitResume() throws InterruptedException {
+        synchronized (lock) {
+            while (paused) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * run a reader once the listener is resumed, right away if it was resumed already.
+     *
+     * @param reader resumes reading from a paused session
+     */
+    public void whenResumed(Runnable reader) {
+        pausedReaders.add(reader);
+        // the listener may have been resumed before the reader was queued
+        if (!paused) {
+            resumeReaders();
+        }
+    }
+
+    private void resumeReaders() {
+        Runnable reader;
+        while ((reader = pausedReaders.poll()) != null) {
+            try {
+                reader.run();
+            } catch (RuntimeException e) {
+                log.warn("Couldn't resume reading from a connection", e);
+            }
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.listening;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.Mediator;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.config.AbstractSynapseObserver;
+import org.apache.synapse.config.SynapseConfiguration;
+import org.apache.synapse.core.SynapseEnvironment;
+import org.apache.synapse.inbound.InboundEndpoint;
+import org.apache.synapse.inbound.InboundProcessorParams;
+import org.apache.synapse.mediators.base.SequenceMediator;
+import org.apache.synapse.transport.customlogsetter.CustomLogSetter;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Injects the messages of an inbound endpoint into its sequence. The inbound endpoint, the
+ * sequence with its error handler and the tenant domain are resolved once and shared by all
+ * connections of the endpoint, instead of being looked up for every message. The resolved
+ * sequence is dropped when the injecting or the error sequence is redeployed, and resolved
+ * again for the next message.
+ */
+public class ISO8583InjectionEngine extends AbstractSynapseObserver {
+    private static final Log log = LogFactory.getLog(ISO8583InjectionEngine.class);
+    private static final ConcurrentMap<String, ISO8583InjectionEngine> engines =
+            new ConcurrentHashMap<String, ISO8583InjectionEngine>();
+
+    private final InboundProcessorParams params;
+    private final SynapseEnvironment synapseEnvironment;
+    private final String injectingSeq;
+    private final String onErrorSeq;
+    private final boolean sequential;
+    private final String tenantDomain;
+    private volatile Target target;
+    private volatile boolean released;
+
+    /**
+     * The sequence and the log appender resolved for the endpoint.
+     */
+    private static final class Target {
+        private final SequenceMediator sequence;
+        private final String artifactContainerName;
+
+        Target(SequenceMediator sequence, String artifactContainerName) {
+            this.sequence = sequence;
+            this.artifactContainerName = artifactContainerName;
+        }
+    }
+
+    private ISO8583InjectionEngine(InboundProcessorParams params) {
+        this.params = params;
+        this.synapseEnvironment = params.getSynapseEnvironment();
+        this.injectingSeq = params.getInjectingSeq();
+        this.onErrorSeq = params.getOnErrorSeq();
+        this.sequential = Boolean.parseBoolean(params.getProperties().getProperty(ISO8583Constant.INBOUND_SEQUENTIAL));
+        this.tenantDomain = PrivilegedCarbonContext.getThreadLocalCarbonContext().getTenantDomain();
+    }
+
+    /**
+     * get the injection engine of an inbound endpoint. The engine should be created by the
+     * listener on startup, so it takes the tenant of the deployment.
+     *
+     * @param params the inbound parameters
+     * @return the shared engine
+     */
+    public static ISO8583InjectionEngine getEngine(InboundProcessorParams params) {
+        ISO8583InjectionEngine engine = engines.get(params.getName());
+        if (engine != null && engine.params == params) {
+            return engine;
+        }
+        synchronized (engines) {
+            engine = engines.get(params.getName());
+            if (engine == null || engine.params != params) {
+                if (engine != null) {
+                    engine.retire();
+                }
+                engine = new ISO8583InjectionEngine(params);
+                engine.register();
+                engines.put(params.getName(), engine);
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * drop the injection engine of an inbound endpoint that is destroyed.
+     *
+     * @param params the inbound parameters
+     */
+    public static void release(InboundProcessorParams params) {
+        synchronized (engines) {
+            ISO8583InjectionEngine engine = engines.get(params.getName());
+            if (engine != null && engine.params == params) {
+                engines.remove(params.getName());
+                engine.retire();
+            }
+        }
+    }
+
+    public String getTenantDomain() {
+        return tenantDomain;
+    }
+
+    /**
+     * @return whether the endpoint has an injecting sequence
+     */
+    public boolean hasInjectingSequence() {
+        return injectingSeq != null && !injectingSeq.equals("");
+    }
+
+    /**
+     * set the log appender of the endpoint and inject the message to the sequence.
+     *
+     * @param msgCtx the message context to inject
+     * @return false if the sequence was not found
+     */
+    public boolean inject(MessageContext msgCtx) {
+        return inject(msgCtx, sequential);
+    }
+
+    /**
+     * set the log appender of the endpoint and inject the message to the sequence,
+     * mediating it on the calling thread if sequential is set.
+     *
+     * @param msgCtx     the message context to inject
+     * @param sequential whether to mediate the message before returning, whatever the
+     *                   sequential parameter of the endpoint
+     * @return false if the sequence was not found
+     */
+    public boolean inject(MessageContext msgCtx, boolean sequential) {
+        if (released) {
+            log.warn("Inbound endpoint " + params.getName() + " was undeployed, not injecting the message");
+            return false;
+        }
+        Target resolved = target;
+        if (resolved == null) {
+            resolved = resolve();
+        }
+        CustomLogSetter.getInstance().setLogAppender(resolved.artifactContainerName);
+        if (resolved.sequence == null) {
+            log.error("Sequence: " + injectingSeq + " not found");
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("injecting message to sequence : " + injectingSeq);
+        }
+        synapseEnvironment.injectInbound(msgCtx, resolved.sequence, sequential);
+        return true;
+    }
+
+    /**
+     * look up the inbound endpoint and the sequence, and set the error handler of the
+     * sequence once instead of on every message.
+     */
+    private synchronized Target resolve() {
+        Target resolved = target;
+        if (resolved != null) {
+            return resolved;
+        }
+        SynapseConfiguration configuration = synapseEnvironment.getSynapseConfiguration();
+        InboundEndpoint inboundEndpoint = configuration.getInboundEndpoint(params.getName());
+        String artifactContainerName = inboundEndpoint != null ? inboundEndpoint.getArtifactContainerName() : null;
+        SequenceMediator seq = (SequenceMediator) configuration.getSequence(injectingSeq);
+        if (seq != null) {
+            seq.setErrorHandler(onErrorSeq);
+        }
+        resolved = new Target(seq, artifactContainerName);
+        // a sequence that isn't deployed yet is looked up again on the next message
+        if (seq != null) {
+            target = resolved;
+        }
+        return resolved;
+    }
+
+    @Override
+    public void sequenceAdded(Mediator sequence) {
+        invalidate(sequence);
+    }
+
+    @Override
+    public void sequenceRemoved(Mediator sequence) {
+        invalidate(sequence);
+    }
+
+    private void invalidate(Mediator sequence) {
+        if (released) {
+            return;
+        }
+        if (sequence instanceof SequenceMediator) {
+            String name = ((SequenceMediator) sequence).getName();
+            if (name != null && (name.equals(injectingSeq) || name.equals(onErrorSeq))) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Sequence " + name + " changed, resolving it again for " + params.getName());
+                }
+                target = null;
+            }
+        }
+    }
+
+    private void register() {
+        synapseEnvironment.getSynapseConfiguration().registerObserver(this);
+    }
+
+    /**
+     * retire the engine. The synapse configuration can't unregister an observer, so a
+     * released engine stays registered and ignores the events and the messages it gets.
+     */
+    private void retire() {
+        released = true;
+        target = null;
+    }
+}
@@ -20,8 +20,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.SynapseException;
 import org.apache.synapse.inbound.InboundProcessorParams;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodecFactory;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Properties;
@@ -37,39 +41,67 @@ public class ISO8583MessageConnection extends Thread {
     private InboundProcessorParams params;
     private ExecutorService threadPool;
     private boolean listening = false;
+    private ISO8583FrameCodec codec;
+    private int maxMessageLength;
+    private boolean persistent;
+    private int idleTimeout;
+    private Semaphore connectionPermits;
+    private ISO8583FlowControl flowControl;
 
     public ISO8583MessageConnection(int port, InboundProcessorParams params) {
         this.port = port;
         this.params = params;
-        this.threadPool = getExecutorService();
+        Properties properties = params.getProperties();
+        String maxConnections = properties.getProperty(ISO8583Constant.INBOUND_MAX_CONNECTIONS);
+        if (ISO8583Constant.EXECUTOR_MODE_VIRTUAL.equalsIgnoreCase(
+                properties.getProperty(ISO8583Constant.INBOUND_EXECUTOR_MODE))) {
+            this.threadPool = getVirtualThreadExecutor();
+            if (StringUtils.isEmpty(maxConnections)) {
+                maxConnections = ISO8583Constant.MAX_CONNECTIONS;
+            }
+        } else {
+            this.threadPool = ISO8583AdaptiveExecutor.createWorkerPool(params.getName(), properties);
+        }
+        this.flowControl = ISO8583FlowControl.create(properties, threadPool);
+        if (StringUtils.isNotEmpty(maxConnections)) {
+            try {
+                this.connectionPermits = new Semaphore(Integer.parseInt(maxConnections));
+            } catch (NumberFormatException e) {
+                handleException("The maxConnections is not a parsable integer", e);
+            }
+        }
+        this.codec = ISO8583FrameCodecFactory.getCodec(properties, ISO8583Constant.FRAMING_NONE);
+        this.maxMessageLength = ISO8583FrameCodecFactory.getMaxMessageLength(properties, codec);
+        this.persistent = Boolean.parseBoolean(properties.getProperty(ISO8583Constant.INBOUND_PERSISTENT_CONNECTION));
+        if (persistent && codec == null) {
+            handleException("Persistent connections need a framing to separate the messages", null);
+        }
+        try {
+            this.idleTimeout = Integer.parseInt(properties.getProperty(ISO8583Constant.INBOUND_IDLE_TIMEOUT,
+                    ISO8583Constant.IDLE_TIMEOUT));
+        } catch (NumberFormatException e) {
+            handleException("The idleTimeout is not a parsable integer", e);
+        }
     }
 
     /**
-     * create the threadPool to handle the concurrent request.
+     * create an executor that runs every connection on its own virtual thread, so the
+     * blocking read/inject/reply code scales to a large number of connections.
+     * Falls back to a thread per connection on a JDK without virtual threads.
      */
-    private ExecutorService getExecutorService() {
-        Properties properties = params.getProperties();
-        String coreThreads = properties.getProperty(ISO8583Constant.INBOUND_CORE_THREADS);
-        String maxThreads = properties.getProperty(ISO8583Constant.INBOUND_MAX_THREADS);
-        String threadSafeTime = properties.getProperty(ISO8583Constant.INBOUND_THREAD_ALIVE);
-        String queueLength = properties.getProperty(ISO8583Constant.INBOUND_THREAD_QLEN);
+    private ExecutorService getVirtualThreadExecutor() {
         try {
-            if ((StringUtils.isNotEmpty(coreThreads)) && (StringUtils.isNotEmpty(maxThreads)) &&
-                    (StringUtils.isNotEmpty(threadSafeTime)) && (StringUtils.isNotEmpty(queueLength))) {
-                BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(Integer.parseInt(queueLength));
-                threadPool = new ThreadPoolExecutor(Integer.parseInt(coreThreads), Integer.parseInt(maxThreads)
-                        , Integer.parseInt(threadSafeTime), TimeUnit.SECONDS, workQueue);
-            } else {
-                BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(
-                        Integer.parseInt(ISO8583Constant.THREAD_QLEN));
-                threadPool = new ThreadPoolExecutor(Integer.parseInt(ISO8583Constant.CORE_THREADS),
-                        Integer.parseInt(ISO8583Constant.MAX_THREADS), Integer.parseInt(ISO8583Constant.KEEP_ALIVE),
-                        TimeUnit.SECONDS, workQueue);
-            }
-        } catch (NumberFormatException e) {
-            handleException("One of the property or properties of thread specified is of an invalid type", e);
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            log.warn("Virtual threads are not supported by this JDK, using a platform thread per connection");
+        } catch (IllegalAccessException e) {
+            log.warn("Couldn't create the virtual thread executor, using a platform thread per connection", e);
+        } catch (InvocationTargetException e) {
+            log.warn("Couldn't create the virtual thread executor, using a platform thread per connection",
+                    e.getCause());
         }
-        return threadPool;
+        return Executors.newCachedThreadPool();
     }
 
     /**
@@ -80,6 +112,19 @@ public class ISO8583MessageConnection extends Thread {
             server = new ServerSocket(port);
             log.info("Server is listening on port :" + port);
             while (!listening) {
+                try {
+                    if (flowControl != null) {
+                        // stop accepting while the worker pool is above its watermark
+                        flowControl.awaitResume();
+                    }
+                    if (connectionPermits != null) {
+                        // stop accepting while the connection limit is reached
+                        connectionPermits.acquire();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
                 try {
                     Socket socketConnection = server.accept();
                     if (log.isDebugEnabled()) {
@@ -87,6 +132,10 @@ public class ISO8583MessageConnection extends Thread {
                     }
                     handleClientRequest(socketConnection, params);
                 } catch (IOException e1) {
+                    releasePermit();
+                    if (server.isClosed()) {
+                        break;
+                    }
                     log.warn("Exception occurred while accept the connections", e1);
                 }
             }
@@ -112,6 +161,10 @@ public class ISO8583MessageConnection extends Thread {
                 log.info("Server stop the listening on port:" + port);
                 listening = false;
             }
+            // running connections finish, no new ones are taken
+            threadPool.shutdown();
+            // wake up the listener waiting for the worker pool or a connection permit
+            this.interrupt();
         } catch (IOException e) {
             handleException("Couldn't close the server", e);
         }
@@ -125,10 +178,52 @@ public class ISO8583MessageConnection extends Thread {
      */
     private void handleClientRequest(Socket connection, InboundProcessorParams params) {
         try {
-            threadPool.execute(new ConnectionRequestHandler(connection, params));
+            final ConnectionRequestHandler handler = new ConnectionRequestHandler(connection, params, codec,
+                    maxMessageLength, persistent, idleTimeout);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.run();
+                    } finally {
+                        releasePermit();
+                    }
+                }
+            };
+            if (flowControl != null) {
+                flowControl.begin();
+                task = flowControl.wrap(task);
+            }
+            try {
+                threadPool.execute(task);
+            } catch (RejectedExecutionException re) {
+                if (flowControl != null) {
+                    flowControl.end();
+                }
+                throw re;
+            }
         } catch (RejectedExecutionException re) {
-            // If the pool is full complete the execution with the same thread
-            log.warn("Worker pool has reached the maximum capacity.");
+            log.warn("Worker pool has reached the maximum capacity, closing the connection " + connection);
+            releasePermit();
+            closeQuietly(connection);
+        } catch (SynapseException e) {
+            log.error("Couldn't handle the connection " + connection + ", closing it", e);
+            releasePermit();
+            closeQuietly(connection);
+        }
+    }
+
+    private void closeQuietly(Socket connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            log.warn("Couldn't close the connection " + connection, e);
+        }
+    }
+
+    private void releasePermit() {
+        if (connectionPermits != null) {
+            connectionPermits.release();
         }
     }
 
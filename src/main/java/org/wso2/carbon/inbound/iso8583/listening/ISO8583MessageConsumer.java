@@ -46,12 +46,20 @@ public class ISO8583MessageConsumer extends GenericInboundListener {
 
     @Override
     public void init() {
+        // parse the packager definitions before the first client connects
+        ISO8583PackagerSelector.getSelector(params);
+        // the injection engine takes the tenant of the deployment
+        ISO8583InjectionEngine.getEngine(params);
+        if (!Boolean.parseBoolean(params.getProperties().getProperty(ISO8583Constant.INBOUND_ACT_AS_PROXY))) {
+            ISO8583ResponseRules.reload();
+        }
         messageConnection.start();
     }
 
     @Override
     public void destroy() {
         messageConnection.destroyConnection();
+        ISO8583InjectionEngine.release(params);
     }
 }
 
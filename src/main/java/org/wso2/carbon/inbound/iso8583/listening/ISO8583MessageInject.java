@@ -15,81 +15,82 @@
  */
 package org.wso2.carbon.inbound.iso8583.listening;
 
-import org.apache.axiom.om.OMAbstractFactory;
 import org.apache.axiom.om.OMElement;
-import org.apache.axiom.om.OMFactory;
-import org.apache.axiom.om.util.UUIDGenerator;
 import org.apache.axis2.context.MessageContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.core.SynapseEnvironment;
-import org.apache.synapse.inbound.InboundEndpoint;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
 import org.apache.synapse.inbound.InboundProcessorParams;
-import org.apache.synapse.mediators.base.SequenceMediator;
-import org.apache.synapse.transport.customlogsetter.CustomLogSetter;
-import org.jpos.iso.ISOMsg;
 import org.wso2.carbon.base.MultitenantConstants;
-import org.wso2.carbon.context.PrivilegedCarbonContext;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583JsonPayload;
 
 import java.net.Socket;
-import java.util.Base64;
-import java.util.Properties;
 
 /**
  * class for inject the iso xml messages into sequence.
  */
 public class ISO8583MessageInject {
     private static final Log log = LogFactory.getLog(ISO8583MessageInject.class);
-    private final String injectingSeq;
-    private final String onErrorSeq;
-    private final boolean sequential;
+    private final ISO8583InjectionEngine injectionEngine;
     private final SynapseEnvironment synapseEnvironment;
+    private final ISO8583ReplySender replySender;
     private InboundProcessorParams params;
-    private Socket connection;
-    private Properties properties;
 
-    public ISO8583MessageInject(InboundProcessorParams params, Socket connection) {
+    public ISO8583MessageInject(InboundProcessorParams params, Socket connection, ISO8583FrameCodec codec) {
         this.params = params;
-        this.connection = connection;
-        this.properties = params.getProperties();
-        this.injectingSeq = params.getInjectingSeq();
-        this.onErrorSeq = params.getOnErrorSeq();
-        this.sequential = Boolean.parseBoolean(properties.getProperty(ISO8583Constant.INBOUND_SEQUENTIAL));
+        this.injectionEngine = ISO8583InjectionEngine.getEngine(params);
         this.synapseEnvironment = params.getSynapseEnvironment();
+        this.replySender = new ISO8583ReplySender(connection, params, codec);
     }
 
     /**
      * message builder is used to set the ISO8583 messages to the
      * message context and inject the message to the sequence.
      *
-     * @param object iso fields.
+     * @param parentElement the xml iso message.
+     * @param header        the raw ISO header, null if the messages have none.
+     * @param packagerKey   the packager definition of the message, null for the default one.
      */
-    public boolean inject(ISOMsg object) {
+    public boolean inject(OMElement parentElement, byte[] header, String packagerKey) {
+        return inject(parentElement, null, header, packagerKey);
+    }
+
+    /**
+     * set the JSON payload of an ISO8583 message to the message context
+     * and inject the message to the sequence.
+     *
+     * @param json        the json iso message, see {@link ISO8583JsonPayload}.
+     * @param header      the raw ISO header, null if the messages have none.
+     * @param packagerKey the packager definition of the message, null for the default one.
+     */
+    public boolean injectJson(byte[] json, byte[] header, String packagerKey) {
+        return inject(null, json, header, packagerKey);
+    }
+
+    private boolean inject(OMElement parentElement, byte[] json, byte[] header, String packagerKey) {
+        if (!injectionEngine.hasInjectingSequence()) {
+            log.error("Sequence name not specified. Sequence : " + params.getInjectingSeq());
+            return false;
+        }
         org.apache.synapse.MessageContext msgCtx = createMessageContext();
         msgCtx.setProperty("inbound.endpoint.name", params.getName());
-        InboundEndpoint inboundEndpoint = msgCtx.getConfiguration().getInboundEndpoint(params.getName());
-        CustomLogSetter.getInstance().setLogAppender(inboundEndpoint.getArtifactContainerName());
         msgCtx.setProperty(ISO8583Constant.ISO8583_INBOUND_MSG_ID, msgCtx.getMessageID());
-
-        if (injectingSeq == null || injectingSeq.equals("")) {
-            log.error("Sequence name not specified. Sequence : " + injectingSeq);
-            return false;
+        if (header != null) {
+            msgCtx.setProperty(ISO8583Constant.ISO8583_HEADER, header);
+        }
+        if (packagerKey != null) {
+            msgCtx.setProperty(ISO8583Constant.ISO8583_PACKAGER, packagerKey);
         }
-        SequenceMediator seq = (SequenceMediator) synapseEnvironment.getSynapseConfiguration()
-                .getSequence(injectingSeq);
         try {
-            OMElement parentElement = messageBuilder(object);
-            msgCtx.getEnvelope().getBody().addChild(parentElement);
-            ISO8583ReplySender replySender = new ISO8583ReplySender(connection, params);
-            if (seq != null) {
-                seq.setErrorHandler(onErrorSeq);
-                if (log.isDebugEnabled()) {
-                    log.info("injecting message to sequence : " + injectingSeq);
-                }
-                synapseEnvironment.injectInbound(msgCtx, seq, sequential);
+            if (json != null) {
+                ISO8583JsonPayload.setPayload(
+                        ((Axis2MessageContext) msgCtx).getAxis2MessageContext(), json);
             } else {
-                log.error("Sequence: " + injectingSeq + " not found");
+                msgCtx.getEnvelope().getBody().addChild(parentElement);
             }
+            injectionEngine.inject(msgCtx);
             replySender.sendBack(msgCtx);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -100,43 +101,14 @@ public class ISO8583MessageInject {
     /**
      * Create the initial message context for ISO8583
      * create a synapse environment to send ISO8583 message to Inbound.
+     * The message id is the one generated by the synapse environment.
      */
     private org.apache.synapse.MessageContext createMessageContext() {
         org.apache.synapse.MessageContext msgCtx = synapseEnvironment.createMessageContext();
-        MessageContext axis2MsgCtx =
-                ((org.apache.synapse.core.axis2.Axis2MessageContext) msgCtx).getAxis2MessageContext();
+        MessageContext axis2MsgCtx = ((Axis2MessageContext) msgCtx).getAxis2MessageContext();
         axis2MsgCtx.setServerSide(true);
-        axis2MsgCtx.setMessageID(UUIDGenerator.getUUID());
         msgCtx.setProperty(MessageContext.CLIENT_API_NON_BLOCKING, true);
-        PrivilegedCarbonContext carbonContext = PrivilegedCarbonContext.getThreadLocalCarbonContext();
-        axis2MsgCtx.setProperty(MultitenantConstants.TENANT_DOMAIN, carbonContext.getTenantDomain());
+        axis2MsgCtx.setProperty(MultitenantConstants.TENANT_DOMAIN, injectionEngine.getTenantDomain());
         return msgCtx;
     }
-
-    /**
-     * messageBuilder is used to build the xml iso messages.
-     *
-     * @param isomsg iso fields.
-     */
-    private OMElement messageBuilder(ISOMsg isomsg) {
-        OMFactory OMfactory = OMAbstractFactory.getOMFactory();
-        OMElement parentElement = OMfactory.createOMElement(ISO8583Constant.TAG_MSG, null);
-        if (isomsg.getHeader() != null) {
-            OMElement header = OMfactory.createOMElement(ISO8583Constant.HEADER, null);
-            header.setText(Base64.getEncoder().encodeToString(isomsg.getHeader()));
-            parentElement.addChild(header);
-        }
-        OMElement result = OMfactory.createOMElement(ISO8583Constant.TAG_DATA, null);
-        for (int i = 0; i <= isomsg.getMaxField(); i++) {
-            if (isomsg.hasField(i)) {
-                String outputResult = isomsg.getString(i);
-                OMElement messageElement = OMfactory.createOMElement(ISO8583Constant.TAG_FIELD, null);
-                messageElement.addAttribute(OMfactory.createOMAttribute(ISO8583Constant.TAG_ID, null, String.valueOf(i)));
-                messageElement.setText(outputResult);
-                result.addChild(messageElement);
-                parentElement.addChild(result);
-            }
-        }
-        return parentElement;
-    }
 }
@@ -23,26 +23,29 @@ import org.apache.synapse.SynapseException;
 import org.apache.synapse.inbound.InboundProcessorParams;
 import org.jpos.iso.ISOBasePackager;
 import org.jpos.iso.ISOException;
-import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.GenericPackager;
+import org.wso2.carbon.inbound.iso8583.packager.ISO8583FieldCodecs;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * class for get ISOPackager.
+ * class for get ISOPackager. Parsing the packager definition is expensive, so every
+ * definition is parsed once per header length and the packager is shared by all
+ * connections. Cached packagers are fully initialized and must not be modified.
  */
 public class ISO8583PackagerFactory {
     private static final Log log = LogFactory.getLog(ISO8583PackagerFactory.class);
+    private static final ConcurrentMap<String, ISOBasePackager> packagers =
+            new ConcurrentHashMap<String, ISOBasePackager>();
 
-    public static ISOPackager getPackager() {
-        ISOPackager packager = null;
-        try {
-            ClassLoader loader = Thread.currentThread().getContextClassLoader();
-            packager = new GenericPackager(loader.getResourceAsStream(ISO8583Constant.PACKAGER));
-        } catch (ISOException e) {
-            handleException("Error while get the ISOPackager", e);
-        }
-        return packager;
+    public static ISOBasePackager getPackager() {
+        return getPackager(ISO8583Constant.PACKAGER, 0);
     }
 
     /**
@@ -51,20 +54,79 @@ public class ISO8583PackagerFactory {
      * @return
      */
     public static ISOBasePackager getPackagerWithParams(InboundProcessorParams params) {
-        ISOBasePackager packager = null;
+        return getPackager(ISO8583Constant.PACKAGER, getHeaderLength(params));
+    }
+
+    /**
+     * Get the header length of the inbound endpoint
+     * @param params the inbound parameters
+     * @return the length of the ISO header, 0 if not set
+     */
+    public static int getHeaderLength(InboundProcessorParams params) {
+        int headerLength = 0;
         try {
             Properties properties = params.getProperties();
-            int headerLength = 0;
             if (StringUtils.isNotEmpty(properties.getProperty(ISO8583Constant.INBOUND_HEADER_LENGTH))) {
                 headerLength = Integer.parseInt(properties.getProperty(ISO8583Constant.INBOUND_HEADER_LENGTH));
             }
-            ClassLoader loader = Thread.currentThread().getContextClassLoader();
-            packager = new GenericPackager(loader.getResourceAsStream(ISO8583Constant.PACKAGER));
-            packager.setHeaderLength(headerLength);
         } catch (NumberFormatException e) {
             handleException("One of the properties is invalid type", e);
+        }
+        return headerLength;
+    }
+
+    /**
+     * Get the shared packager of a definition, parsing it on first use.
+     *
+     * @param resource     the packager definition, a file or a resource on the class path
+     * @param headerLength the length of the ISO header
+     * @return the packager
+     */
+    public static ISOBasePackager getPackager(String resource, int headerLength) {
+        String key = resource + ":" + headerLength;
+        ISOBasePackager packager = packagers.get(key);
+        if (packager == null) {
+            packager = createPackager(resource, headerLength);
+            ISOBasePackager existing = packagers.putIfAbsent(key, packager);
+            if (existing != null) {
+                packager = existing;
+            }
+        }
+        return packager;
+    }
+
+    private static ISOBasePackager createPackager(String resource, int headerLength) {
+        ISOBasePackager packager = null;
+        InputStream definition = null;
+        File file = new File(resource);
+        if (file.isFile()) {
+            try {
+                definition = new FileInputStream(file);
+            } catch (IOException e) {
+                handleException("Couldn't read the packager definition " + resource, e);
+            }
+        } else {
+            definition = Thread.currentThread().getContextClassLoader().getResourceAsStream(resource);
+        }
+        if (definition == null) {
+            log.error("Couldn't find the packager definition " + resource);
+            throw new SynapseException("Couldn't find the packager definition " + resource);
+        }
+        try {
+            packager = new GenericPackager(definition);
+            packager.setHeaderLength(headerLength);
+            ISO8583FieldCodecs.compile(packager);
+            if (log.isDebugEnabled()) {
+                log.debug("Loaded the packager " + resource + " with header length " + headerLength);
+            }
         } catch (ISOException e) {
             handleException("Error while getting the ISOPackager", e);
+        } finally {
+            try {
+                definition.close();
+            } catch (IOException e) {
+                log.warn("Couldn't close the packager definition " + resource, e);
+            }
         }
         return packager;
     }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.listening;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.SynapseException;
+import org.apache.synapse.inbound.InboundProcessorParams;
+import org.jpos.iso.ISOBasePackager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Packager definitions of an inbound endpoint and the rule that picks one of them for
+ * every received message. The definitions are declared with
+ * {@code packagers=<key>=<definition>;<key>=<definition>} and the packagerSelector
+ * decides which key a message has:
+ * <ul>
+ * <li>{@code mti}, the ISO version digit of the MTI (0 for 1987, 1 for 1993, 2 for 2003),
+ * read from ASCII, EBCDIC or BCD encoded MTIs</li>
+ * <li>{@code header}, the leading bytes of the ISO header as hex</li>
+ * <li>{@code nii}, the network international identifier of a TPDU header as 4 hex digits</li>
+ * </ul>
+ * Messages matching no key use the first definition. The selected key is set as the
+ * ISO8583_PACKAGER property of the message context so the response is packed with the
+ * same definition. Endpoints without packagers use jposdef.xml for every message.
+ */
+public class ISO8583PackagerSelector {
+    private static final Log log = LogFactory.getLog(ISO8583PackagerSelector.class);
+    private static final ConcurrentMap<String, ISO8583PackagerSelector> selectors =
+            new ConcurrentHashMap<String, ISO8583PackagerSelector>();
+    private static final int NII_OFFSET = 1;
+    private static final int NII_LENGTH = 2;
+
+    private final String selector;
+    private final int headerLength;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, Entry> entriesByKey = new HashMap<String, Entry>();
+    private final Entry defaultEntry;
+
+    /**
+     * A packager definition and the value a message must have to use it.
+     */
+    private static final class Entry {
+        private final String key;
+        private final byte[] match;
+        private final int version;
+        private final ISOBasePackager packager;
+
+        Entry(String key, byte[] match, int version, ISOBasePackager packager) {
+            this.key = key;
+            this.match = match;
+            this.version = version;
+            this.packager = packager;
+        }
+    }
+
+    private ISO8583PackagerSelector(String packagers, String selector, int headerLength) {
+        this.headerLength = headerLength;
+        if (StringUtils.isBlank(packagers)) {
+            this.selector = null;
+            this.defaultEntry = new Entry(null, null, -1,
+                    ISO8583PackagerFactory.getPackager(ISO8583Constant.PACKAGER, headerLength));
+            return;
+        }
+        this.selector = selector;
+        if (!ISO8583Constant.PACKAGER_SELECTOR_MTI.equals(selector)
+                && !ISO8583Constant.PACKAGER_SELECTOR_HEADER.equals(selector)
+                && !ISO8583Constant.PACKAGER_SELECTOR_NII.equals(selector)) {
+            handleException("Unknown packager selector " + selector);
+        }
+        if (ISO8583Constant.PACKAGER_SELECTOR_NII.equals(selector) && headerLength < NII_OFFSET + NII_LENGTH) {
+            handleException("The nii packager selector needs a TPDU header, set headerLength to the TPDU length");
+        }
+        for (String definition : packagers.split(";")) {
+            if (StringUtils.isBlank(definition)) {
+                continue;
+            }
+            int separator = definition.indexOf('=');
+            if (separator <= 0) {
+                handleException("Packager definition " + definition + " isn't <key>=<definition>");
+            }
+            String key = definition.substring(0, separator).trim();
+            String resource = definition.substring(separator + 1).trim();
+            Entry entry = new Entry(key, parseMatch(key), parseVersion(key),
+                    ISO8583PackagerFactory.getPackager(resource, headerLength));
+            entries.add(entry);
+            entriesByKey.put(key, entry);
+            if (log.isDebugEnabled()) {
+                log.debug("Messages with " + selector + " " + key + " use the packager " + resource);
+            }
+        }
+        if (entries.isEmpty()) {
+            handleException("No packager definitions in " + packagers);
+        }
+        this.defaultEntry = entries.get(0);
+    }
+
+    /**
+     * get the packager selector of an inbound endpoint, loading its packagers on first use.
+     *
+     * @param params the inbound parameters
+     * @return the shared selector
+     */
+    public static ISO8583PackagerSelector getSelector(InboundProcessorParams params) {
+        Properties properties = params.getProperties();
+        String packagers = properties.getProperty(ISO8583Constant.INBOUND_PACKAGERS);
+        String selector = properties.getProperty(ISO8583Constant.INBOUND_PACKAGER_SELECTOR,
+                ISO8583Constant.PACKAGER_SELECTOR_MTI);
+        int headerLength = ISO8583PackagerFactory.getHeaderLength(params);
+        String cacheKey = packagers + "|" + selector + "|" + headerLength;
+        ISO8583PackagerSelector packagerSelector = selectors.get(cacheKey);
+        if (packagerSelector == null) {
+            packagerSelector = new ISO8583PackagerSelector(packagers, selector, headerLength);
+            ISO8583PackagerSelector existing = selectors.putIfAbsent(cacheKey, packagerSelector);
+            if (existing != null) {
+                packagerSelector = existing;
+            }
+        }
+        return packagerSelector;
+    }
+
+    /**
+     * @return whether the endpoint has several packager definitions to select from
+     */
+    public boolean isSelective() {
+        return selector != null;
+    }
+
+    /**
+     * select the packager definition of a packed message.
+     *
+     * @param message the packed message, including the ISO header
+     * @return the key of the definition, or null if the endpoint has a single definition
+     */
+    public String select(byte[] message) {
+        if (selector == null) {
+            return null;
+        }
+        if (ISO8583Constant.PACKAGER_SELECTOR_MTI.equals(selector)) {
+            int version = mtiVersion(message);
+            for (Entry entry : entries) {
+                if (entry.version == version) {
+                    return entry.key;
+                }
+            }
+        } else {
+            int offset = ISO8583Constant.PACKAGER_SELECTOR_NII.equals(selector) ? NII_OFFSET : 0;
+            for (Entry entry : entries) {
+                if (startsWith(message, offset, entry.match)) {
+                    return entry.key;
+                }
+            }
+        }
+        return defaultEntry.key;
+    }
+
+    /**
+     * get the packager of a definition key.
+     *
+     * @param key the key returned by {@link #select(byte[])}, null for the default definition
+     * @return the packager, the default packager for unknown keys
+     */
+    public ISOBasePackager getPackager(String key) {
+        Entry entry = key != null ? entriesByKey.get(key) : null;
+        return entry != null ? entry.packager : defaultEntry.packager;
+    }
+
+    /**
+     * the ISO version digit of the MTI that follows the header, whether the MTI is ASCII,
+     * EBCDIC or BCD encoded.
+     */
+    private int mtiVersion(byte[] message) {
+        if (message.length <= headerLength) {
+            return -1;
+        }
+        int first = message[headerLength] & 0xFF;
+        if (first >= '0' && first <= '9') {
+            return first - '0';
+        } else if ((first & 0xF0) == 0xF0) {
+            return first & 0x0F;
+        }
+        return first >> 4;
+    }
+
+    private static boolean startsWith(byte[] message, int offset, byte[] match) {
+        if (message.length < offset + match.length) {
+            return false;
+        }
+        for (int i = 0; i < match.length; i++) {
+            if (message[offset + i] != match[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] parseMatch(String key) {
+        if (ISO8583Constant.PACKAGER_SELECTOR_MTI.equals(selector)) {
+            return null;
+        }
+        if (key.length() % 2 != 0 || key.length() / 2 > headerLength
+                || (ISO8583Constant.PACKAGER_SELECTOR_NII.equals(selector) && key.length() != NII_LENGTH * 2)) {
+            handleException("Packager key " + key + " doesn't fit the " + selector + " selector");
+        }
+        byte[] match = new byte[key.length() / 2];
+        try {
+            for (int i = 0; i < match.length; i++) {
+                match[i] = (byte) Integer.parseInt(key.substring(i * 2, i * 2 + 2), 16);
+            }
+        } catch (NumberFormatException e) {
+            handleException("Packager key " + key + " isn't hex", e);
+        }
+        return match;
+    }
+
+    private int parseVersion(String key) {
+        if (!ISO8583Constant.PACKAGER_SELECTOR_MTI.equals(selector)) {
+            return -1;
+        }
+        if (key.length() != 1 || !Character.isDigit(key.charAt(0))) {
+            handleException("Packager key " + key + " isn't an MTI version digit");
+        }
+        return key.charAt(0) - '0';
+    }
+
+    private static void handleException(String msg) {
+        log.error(msg);
+        throw new SynapseException(msg);
+    }
+
+    /**
+     * handle the Exception
+     *
+     * @param msg error message
+     * @param e   an Exception
+     */
+    private static void handleException(String msg, Exception e) {
+        log.error(msg, e);
+        throw new SynapseException(msg);
+    }
+}
@@ -21,20 +21,23 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.MessageContext;
 import org.apache.synapse.SynapseException;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
 import org.apache.synapse.inbound.InboundProcessorParams;
 import org.apache.synapse.inbound.InboundResponseSender;
 import org.jpos.iso.ISOBasePackager;
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583DataSource;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583JsonPayload;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583PayloadReader;
 
-import javax.xml.namespace.QName;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Base64;
-import java.util.Iterator;
 import java.util.Properties;
 
 /**
@@ -46,15 +49,18 @@ public class ISO8583ReplySender implements InboundResponseSender {
 
     private Socket connection;
     private InboundProcessorParams params;
+    private ISO8583FrameCodec codec;
 
     /**
      * keep the socket connection to send the response back to client.
      *
      * @param connection created socket connection.
+     * @param codec      length prefix written before the response, null to write it as is.
      */
-    public ISO8583ReplySender(Socket connection, InboundProcessorParams params) {
+    public ISO8583ReplySender(Socket connection, InboundProcessorParams params, ISO8583FrameCodec codec) {
         this.connection = connection;
         this.params = params;
+        this.codec = codec;
     }
 
     /**
@@ -66,54 +72,66 @@ public class ISO8583ReplySender implements InboundResponseSender {
     public void sendBack(MessageContext messageContext) {
         byte[] responseMessage = null;
         try {
-            ISOBasePackager packager = ISO8583PackagerFactory.getPackagerWithParams(params);
-            Properties properties = getPropertiesFile();
-            //Retrieve the SOAP envelope from the MessageContext
-            SOAPEnvelope soapEnvelope = messageContext.getEnvelope();
-            OMElement getElements = soapEnvelope.getBody().getFirstElement();
-            if (getElements == null) {
-                handleException("Failed to get response message", null);
-            }
-            ISOMsg isoMsg = new ISOMsg();
-            isoMsg.setPackager(packager);
-            if (packager.getHeaderLength() > 0) {
-                String header = getElements.getFirstChildWithName(new QName(ISO8583Constant.HEADER)).getText();
-                isoMsg.setHeader(Base64.getDecoder().decode(header));
-            }
-            Iterator fields = getElements.getFirstChildWithName(
-                    new QName(ISO8583Constant.TAG_DATA)).getChildrenWithLocalName(ISO8583Constant.TAG_FIELD);
-            while (fields.hasNext()) {
-                OMElement element = (OMElement) fields.next();
-                String getValue = element.getText();
-                try {
-                    int fieldID = Integer.parseInt(element.getAttribute(
-                            new QName(ISO8583Constant.TAG_ID)).getAttributeValue());
-                    isoMsg.set(fieldID, getValue);
-                } catch (NumberFormatException e) {
-                    log.warn("The fieldID does not contain a parsable integer" + e.getMessage(), e);
+            ISOBasePackager packager = ISO8583PackagerSelector.getSelector(params)
+                    .getPackager((String) messageContext.getProperty(ISO8583Constant.ISO8583_PACKAGER));
+            org.apache.axis2.context.MessageContext axis2MsgCtx =
+                    ((Axis2MessageContext) messageContext).getAxis2MessageContext();
+            boolean json = ISO8583JsonPayload.hasPayload(axis2MsgCtx);
+            /* the header travels as raw bytes, the header of the payload is only a view of it and
+                is read back just when the message context doesn't carry the bytes */
+            byte[] header = (byte[]) messageContext.getProperty(ISO8583Constant.ISO8583_HEADER);
+            boolean payloadHeader = header == null && packager.getHeaderLength() > 0;
+            OMElement getElements = null;
+            ISO8583DataSource dataSource = null;
+            byte[] packedMessage = null;
+            if (!json) {
+                //Retrieve the SOAP envelope from the MessageContext
+                SOAPEnvelope soapEnvelope = messageContext.getEnvelope();
+                getElements = soapEnvelope.getBody().getFirstElement();
+                if (getElements == null) {
+                    handleException("Failed to get response message", null);
                 }
+                /* a deferred payload nobody navigated into still holds the request as it was received,
+                    once expanded only the changed fields are packed into the received bytes */
+                dataSource = ISO8583DataSource.getDataSource(getElements);
+                packedMessage = ISO8583DataSource.getPackedMessage(getElements);
             }
-
-            /* isProxy defines whether this inbound is acting as a proxy for
-                another backend service or processing the message itself.
-                if the inbound endpoint act as a proxy to another service
-                pack the ISO message without change any field
-             */
-            if (isProxy()) {
-                responseMessage = isoMsg.pack();
+            if (packedMessage != null && isProxy()) {
+                responseMessage = packedMessage;
             } else {
-                /* Set the response fields */
-                if (isoMsg.getMTI().equals(properties.getProperty((String) ISO8583Constant.REQUEST_MTI))) {
-                    isoMsg.setMTI((properties.getProperty((String) ISO8583Constant.RESPONSE_MTI)));
-                    /* Set the code for successful response */
-                    isoMsg.set(properties.getProperty(ISO8583Constant.RESPONSE_FIELD),
-                            properties.getProperty(ISO8583Constant.SUCCESSFUL_RESPONSE_CODE));
-                    responseMessage = isoMsg.pack();
+                ISOMsg isoMsg = new ISOMsg();
+                isoMsg.setPackager(packager);
+                if (json) {
+                    ISO8583JsonPayload.setFields(axis2MsgCtx, isoMsg, payloadHeader);
+                } else if (packedMessage != null) {
+                    isoMsg.unpack(packedMessage);
+                } else {
+                    setFields(isoMsg, getElements, payloadHeader);
+                }
+                if (header != null) {
+                    isoMsg.setHeader(header);
+                }
+
+                /* isProxy defines whether this inbound is acting as a proxy for
+                    another backend service or processing the message itself.
+                    if the inbound endpoint act as a proxy to another service
+                    pack the ISO message without change any field
+                 */
+                if (isProxy()) {
+                    responseMessage = pack(isoMsg, dataSource);
                 } else {
-                    /* Set the code for invalid transaction response */
-                    isoMsg.set(properties.getProperty(ISO8583Constant.RESPONSE_FIELD),
-                            properties.getProperty(ISO8583Constant.FAILURE_RESPONSE_CODE));
-                    responseMessage = isoMsg.pack();
+                    /* Set the response fields */
+                    ISO8583ResponseRules rules = ISO8583ResponseRules.getInstance();
+                    ISO8583ResponseRules.Rule rule = rules.getRule(isoMsg.getMTI());
+                    if (rule != null) {
+                        isoMsg.setMTI(rule.getResponseMTI());
+                        /* Set the code for successful response */
+                        isoMsg.set(rules.getResponseField(), rule.getResponseCode());
+                    } else {
+                        /* Set the code for invalid transaction response */
+                        isoMsg.set(rules.getResponseField(), rules.getFailureResponseCode());
+                    }
+                    responseMessage = pack(isoMsg, dataSource);
                 }
             }
         } catch (ISOException e) {
@@ -122,6 +140,27 @@ public class ISO8583ReplySender implements InboundResponseSender {
         sendResponse(responseMessage);
     }
 
+    /**
+     * pack the response, splicing the changed fields into the request bytes when the
+     * payload was deferred.
+     */
+    private byte[] pack(ISOMsg isoMsg, ISO8583DataSource dataSource) throws ISOException {
+        return dataSource != null ? dataSource.pack(isoMsg) : isoMsg.pack();
+    }
+
+    /**
+     * set the fields, and the header when asked to, of the xml iso message on the ISOMsg.
+     */
+    private void setFields(ISOMsg isoMsg, OMElement getElements, boolean withHeader) throws ISOException {
+        if (withHeader) {
+            String header = ISO8583PayloadReader.getHeader(getElements);
+            if (header != null) {
+                isoMsg.setHeader(Base64.getDecoder().decode(header));
+            }
+        }
+        ISO8583PayloadReader.setFields(getElements, isoMsg);
+    }
+
     /**
      * writes the packed iso message response to the client.
      *
@@ -130,35 +169,20 @@ public class ISO8583ReplySender implements InboundResponseSender {
     private void sendResponse(byte[] responseMessage) {
         try {
             DataOutputStream outToClient = new DataOutputStream(connection.getOutputStream());
-            outToClient.write(responseMessage);
+            if (codec != null) {
+                ByteBuffer frame = ByteBuffer.allocate(codec.getPrefixLength() + responseMessage.length);
+                codec.encode(frame, responseMessage);
+                outToClient.write(frame.array(), 0, frame.position());
+            } else {
+                outToClient.write(responseMessage);
+            }
         } catch (IOException e) {
             handleException("OutputStream may be closed ", e);
+        } catch (IllegalArgumentException e) {
+            handleException("Couldn't frame the response", e);
         }
     }
 
-    /**
-     * get config files to map iso request and response fields.
-     */
-    private Properties getPropertiesFile() {
-        String resourceName = ISO8583Constant.PROPERTIES_FILE;
-        Properties prop = new Properties();
-        InputStream resourceStream = getClass().getClassLoader().getResourceAsStream(resourceName);
-        try {
-            if (resourceStream != null)
-                prop.load(resourceStream);
-        } catch (IOException e) {
-            handleException("Could not find the properties file ", e);
-        } finally {
-            try {
-                if (resourceStream != null)
-                    resourceStream.close();
-            } catch (IOException e) {
-                log.error("Couldn't close the inputStream");
-            }
-        }
-        return prop;
-    }
-
     /**
      * handle the Exception
      *
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.listening;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.SynapseException;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Response mapping rules of config.properties, compiled into a table indexed by the
+ * numeric request MTI. The rules are loaded when a listener starts and replaced as a
+ * whole on {@link #reload()}, so building a response needs no I/O and no property
+ * lookups, and a restarted endpoint picks up the edited file.
+ * <p>
+ * Besides the single requestMTI/responseMTI pair, any number of request MTIs can be
+ * mapped with {@code responseMTI.<requestMTI>=<responseMTI>}, and the successful
+ * response code can be overridden per request MTI with
+ * {@code successfulResponseCode.<requestMTI>=<code>}.
+ */
+public class ISO8583ResponseRules {
+    private static final Log log = LogFactory.getLog(ISO8583ResponseRules.class);
+    private static final int MTI_LENGTH = 4;
+    private static final int MTI_COUNT = 10000;
+    private static volatile ISO8583ResponseRules instance;
+
+    private final int responseField;
+    private final String failureResponseCode;
+    private final Rule[] rules = new Rule[MTI_COUNT];
+
+    /**
+     * A response MTI and the response code set for a request MTI.
+     */
+    public static final class Rule {
+        private final String responseMTI;
+        private final String responseCode;
+
+        Rule(String responseMTI, String responseCode) {
+            this.responseMTI = responseMTI;
+            this.responseCode = responseCode;
+        }
+
+        public String getResponseMTI() {
+            return responseMTI;
+        }
+
+        public String getResponseCode() {
+            return responseCode;
+        }
+    }
+
+    private ISO8583ResponseRules(Properties properties) {
+        this.responseField = Integer.parseInt(properties.getProperty(ISO8583Constant.RESPONSE_FIELD));
+        this.failureResponseCode = properties.getProperty(ISO8583Constant.FAILURE_RESPONSE_CODE);
+        String successfulResponseCode = properties.getProperty(ISO8583Constant.SUCCESSFUL_RESPONSE_CODE);
+        String requestMTI = properties.getProperty(ISO8583Constant.REQUEST_MTI);
+        if (StringUtils.isNotEmpty(requestMTI)) {
+            addRule(requestMTI, properties.getProperty(ISO8583Constant.RESPONSE_MTI), successfulResponseCode);
+        }
+        String prefix = ISO8583Constant.RESPONSE_MTI + ".";
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                String mti = name.substring(prefix.length());
+                String responseCode = properties.getProperty(
+                        ISO8583Constant.SUCCESSFUL_RESPONSE_CODE + "." + mti, successfulResponseCode);
+                addRule(mti, properties.getProperty(name), responseCode);
+            }
+        }
+    }
+
+    /**
+     * get the loaded rules, loading them on first use.
+     */
+    public static ISO8583ResponseRules getInstance() {
+        ISO8583ResponseRules rules = instance;
+        if (rules == null) {
+            synchronized (ISO8583ResponseRules.class) {
+                rules = instance;
+                if (rules == null) {
+                    rules = load();
+                    instance = rules;
+                }
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * load the rules again from config.properties, called by the listeners when they
+     * start. Responses being built keep using the rules they started with.
+     */
+    public static void reload() {
+        ISO8583ResponseRules rules = load();
+        synchronized (ISO8583ResponseRules.class) {
+            instance = rules;
+        }
+        log.info("Loaded the response rules from " + ISO8583Constant.PROPERTIES_FILE);
+    }
+
+    /**
+     * @param requestMTI the MTI of the request
+     * @return the rule of the request MTI, or null if the MTI is not mapped
+     */
+    public Rule getRule(String requestMTI) {
+        int index = index(requestMTI);
+        return index < 0 ? null : rules[index];
+    }
+
+    /**
+     * turn a request that is declined without being mediated into its response.
+     *
+     * @param isoMsg       the request
+     * @param responseCode the response code to set
+     * @throws ISOException if the response field can't be set
+     */
+    public void decline(ISOMsg isoMsg, String responseCode) throws ISOException {
+        String mti = isoMsg.getMTI();
+        Rule rule = getRule(mti);
+        if (rule != null) {
+            isoMsg.setMTI(rule.getResponseMTI());
+        } else if (index(mti) >= 0 && (mti.charAt(2) - '0') % 2 == 0) {
+            // the message function digit of a request is even, its response is the next one
+            isoMsg.setMTI(mti.substring(0, 2) + (char) (mti.charAt(2) + 1) + mti.substring(3));
+        }
+        isoMsg.set(responseField, responseCode);
+    }
+
+    public int getResponseField() {
+        return responseField;
+    }
+
+    public String getFailureResponseCode() {
+        return failureResponseCode;
+    }
+
+    private void addRule(String requestMTI, String responseMTI, String responseCode) {
+        int index = index(requestMTI);
+        if (index < 0 || index(responseMTI) < 0) {
+            log.warn("Ignoring the response rule " + requestMTI + " -> " + responseMTI + ", MTIs must be "
+                    + MTI_LENGTH + " digits");
+            return;
+        }
+        rules[index] = new Rule(responseMTI, responseCode);
+    }
+
+    /**
+     * get the table index of an MTI without parsing it into an Integer.
+     *
+     * @return the numeric value of the MTI, or -1 if it is not four digits
+     */
+    private static int index(String mti) {
+        if (mti == null || mti.length() != MTI_LENGTH) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < MTI_LENGTH; i++) {
+            int digit = mti.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            index = index * 10 + digit;
+        }
+        return index;
+    }
+
+    private static ISO8583ResponseRules load() {
+        String resourceName = ISO8583Constant.PROPERTIES_FILE;
+        Properties prop = new Properties();
+        InputStream resourceStream = ISO8583ResponseRules.class.getClassLoader().getResourceAsStream(resourceName);
+        try {
+            if (resourceStream != null) {
+                prop.load(resourceStream);
+            }
+            return new ISO8583ResponseRules(prop);
+        } catch (IOException e) {
+            handleException("Could not read the properties file " + resourceName, e);
+        } catch (NumberFormatException e) {
+            handleException("The responseField of " + resourceName + " is not a parsable integer", e);
+        } finally {
+            try {
+                if (resourceStream != null) {
+                    resourceStream.close();
+                }
+            } catch (IOException e) {
+                log.error("Couldn't close the inputStream");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * handle the Exception
+     *
+     * @param msg error message
+     * @param e   an Exception
+     */
+    private static void handleException(String msg, Exception e) {
+        log.error(msg, e);
+        throw new SynapseException(msg);
+    }
+}
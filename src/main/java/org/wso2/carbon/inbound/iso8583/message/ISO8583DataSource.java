@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.message;
+
+import org.apache.axiom.om.OMDataSourceExt;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMException;
+import org.apache.axiom.om.OMOutputFormat;
+import org.apache.axiom.om.OMSourcedElement;
+import org.apache.axiom.om.ds.OMDataSourceExtBase;
+import org.apache.axiom.om.util.StAXUtils;
+import org.jpos.iso.ISOBasePackager;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Base64;
+
+/**
+ * Data source of a deferred ISO8583 payload. It keeps the packed message and its packager,
+ * and the {@code <ISOMessage>} XML is only produced when a mediator navigates into the
+ * element or the element is serialized. Reply senders take the packed message back with
+ * {@link #getPackedMessage(OMElement)} as long as the element was not expanded.
+ */
+public class ISO8583DataSource extends OMDataSourceExtBase {
+    private final byte[] message;
+    private final ISO8583MessageReader reader;
+    private final boolean headerView;
+    private ISO8583MessageView view;
+
+    /**
+     * @param headerView whether the expanded element shows the ISO header, the header is
+     *                   part of the packed message either way
+     */
+    public ISO8583DataSource(byte[] message, ISOBasePackager packager, boolean headerView) {
+        this.message = message;
+        this.reader = ISO8583MessageReader.getReader(packager);
+        this.headerView = headerView;
+    }
+
+    /**
+     * get the packed message of a payload element that was not expanded.
+     *
+     * @param element the payload element
+     * @return the packed message, or null if the element is not a deferred ISO8583 payload or
+     * was expanded, and so may have been changed
+     */
+    public static byte[] getPackedMessage(OMElement element) {
+        if (element instanceof OMSourcedElement) {
+            OMSourcedElement sourcedElement = (OMSourcedElement) element;
+            if (!sourcedElement.isExpanded() && sourcedElement.getDataSource() instanceof ISO8583DataSource) {
+                return ((ISO8583DataSource) sourcedElement.getDataSource()).getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * get the data source of a deferred ISO8583 payload element, expanded or not.
+     *
+     * @param element the payload element
+     * @return the data source, or null if the element is not a deferred ISO8583 payload
+     */
+    public static ISO8583DataSource getDataSource(OMElement element) {
+        if (element instanceof OMSourcedElement
+                && ((OMSourcedElement) element).getDataSource() instanceof ISO8583DataSource) {
+            return (ISO8583DataSource) ((OMSourcedElement) element).getDataSource();
+        }
+        return null;
+    }
+
+    /**
+     * pack a message built from this payload, splicing only the fields that changed into
+     * the received bytes.
+     *
+     * @param isoMsg the message to send
+     * @return the packed message
+     * @throws ISOException if the message can't be packed
+     */
+    public byte[] pack(ISOMsg isoMsg) throws ISOException {
+        byte[] packed = reader.splice(message, isoMsg);
+        return packed != null ? packed : isoMsg.pack();
+    }
+
+    /**
+     * get a view of the message, so mediators can route on its fields without expanding
+     * the payload.
+     *
+     * @return the view, or null if the packager layout can't be viewed
+     * @throws ISOException if the message does not match the packager
+     */
+    public synchronized ISO8583MessageView getMessageView() throws ISOException {
+        if (view == null) {
+            view = reader.view(message);
+        }
+        return view;
+    }
+
+    public byte[] getMessage() {
+        return message;
+    }
+
+    public ISOBasePackager getPackager() {
+        return reader.getPackager();
+    }
+
+    @Override
+    public void serialize(XMLStreamWriter xmlWriter) throws XMLStreamException {
+        XMLFieldWriter fieldWriter = new XMLFieldWriter(xmlWriter, headerView);
+        xmlWriter.writeStartElement(ISO8583Constant.TAG_MSG);
+        try {
+            reader.read(message, fieldWriter);
+        } catch (ISOException e) {
+            throw new XMLStreamException("Couldn't unpack the ISO8583 message", e);
+        } catch (OMException e) {
+            if (e.getCause() instanceof XMLStreamException) {
+                throw (XMLStreamException) e.getCause();
+            }
+            throw e;
+        }
+        if (fieldWriter.data) {
+            xmlWriter.writeEndElement();
+        }
+        xmlWriter.writeEndElement();
+    }
+
+    @Override
+    public void serialize(OutputStream output, OMOutputFormat format) throws XMLStreamException {
+        XMLStreamWriter xmlWriter = StAXUtils.createXMLStreamWriter(output, format.getCharSetEncoding());
+        serialize(xmlWriter);
+        xmlWriter.flush();
+    }
+
+    @Override
+    public void serialize(Writer writer, OMOutputFormat format) throws XMLStreamException {
+        XMLStreamWriter xmlWriter = StAXUtils.createXMLStreamWriter(writer);
+        serialize(xmlWriter);
+        xmlWriter.flush();
+    }
+
+    @Override
+    public XMLStreamReader getReader() throws XMLStreamException {
+        return StAXUtils.createXMLStreamReader(new ByteArrayInputStream(toXML("UTF-8")), "UTF-8");
+    }
+
+    @Override
+    public byte[] getXMLBytes(String encoding) throws UnsupportedEncodingException {
+        try {
+            return toXML(encoding);
+        } catch (XMLStreamException e) {
+            throw new OMException(e);
+        }
+    }
+
+    private byte[] toXML(String encoding) throws XMLStreamException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(message.length * 8);
+        XMLStreamWriter xmlWriter = StAXUtils.createXMLStreamWriter(output, encoding);
+        serialize(xmlWriter);
+        xmlWriter.flush();
+        return output.toByteArray();
+    }
+
+    @Override
+    public Object getObject() {
+        return message;
+    }
+
+    @Override
+    public boolean isDestructiveRead() {
+        return false;
+    }
+
+    @Override
+    public boolean isDestructiveWrite() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public OMDataSourceExt copy() {
+        return new ISO8583DataSource(message, reader.getPackager(), headerView);
+    }
+
+    /**
+     * writes the header and the fields to the xml stream, the visitor methods can't throw
+     * the XMLStreamException so it is wrapped.
+     */
+    private static class XMLFieldWriter implements ISO8583MessageReader.FieldVisitor {
+        private final XMLStreamWriter xmlWriter;
+        private final boolean headerView;
+        private boolean data;
+
+        XMLFieldWriter(XMLStreamWriter xmlWriter, boolean headerView) {
+            this.xmlWriter = xmlWriter;
+            this.headerView = headerView;
+        }
+
+        @Override
+        public void header(byte[] header) {
+            if (!headerView) {
+                return;
+            }
+            try {
+                xmlWriter.writeStartElement(ISO8583Constant.HEADER);
+                xmlWriter.writeCharacters(Base64.getEncoder().encodeToString(header));
+                xmlWriter.writeEndElement();
+            } catch (XMLStreamException e) {
+                throw new OMException(e);
+            }
+        }
+
+        @Override
+        public void field(int id, String value) {
+            try {
+                if (!data) {
+                    xmlWriter.writeStartElement(ISO8583Constant.TAG_DATA);
+                    data = true;
+                }
+                xmlWriter.writeStartElement(ISO8583Constant.TAG_FIELD);
+                xmlWriter.writeAttribute(ISO8583Constant.TAG_ID, ISO8583MessageBuilder.fieldId(id));
+                if (value != null) {
+                    xmlWriter.writeCharacters(value);
+                }
+                xmlWriter.writeEndElement();
+            } catch (XMLStreamException e) {
+                throw new OMException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.message;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.axis2.context.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.Base64;
+
+/**
+ * JSON representation of an ISO8583 message, a flat object keyed by field id with the
+ * ISO header as Base64 {@code header} when the header view is on, for example
+ * {@code {"0":"0200","3":"000000","11":"000001"}}.
+ * The object is written straight into the JSON stream of the message context, so JSON
+ * sequences never see an XML payload, and read back by the reply senders.
+ */
+public class ISO8583JsonPayload {
+    public static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String HEADER = "header";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ISO8583JsonPayload() {
+    }
+
+    /**
+     * write the fields of a packed message as a JSON object.
+     *
+     * @param reader  the reader of the message packager
+     * @param message    the packed message, including the ISO header
+     * @param headerView whether to write the ISO header
+     * @return the JSON object as UTF-8 bytes
+     * @throws ISOException if the message does not match the packager
+     */
+    public static byte[] toJson(ISO8583MessageReader reader, byte[] message, final boolean headerView)
+            throws ISOException {
+        final StringBuilder json = new StringBuilder(message.length * 2);
+        json.append('{');
+        reader.read(message, new ISO8583MessageReader.FieldVisitor() {
+            @Override
+            public void header(byte[] header) {
+                if (headerView) {
+                    appendMember(json, HEADER, Base64.getEncoder().encodeToString(header));
+                }
+            }
+
+            @Override
+            public void field(int id, String value) {
+                appendMember(json, ISO8583MessageBuilder.fieldId(id), value);
+            }
+        });
+        json.append('}');
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * set a JSON object as the payload of the message context.
+     */
+    public static void setPayload(MessageContext axis2MsgCtx, byte[] json) throws AxisFault {
+        JsonUtil.getNewJsonPayload(axis2MsgCtx, new ByteArrayInputStream(json), true, true);
+        axis2MsgCtx.setProperty(Constants.Configuration.MESSAGE_TYPE, JSON_CONTENT_TYPE);
+        axis2MsgCtx.setProperty(Constants.Configuration.CONTENT_TYPE, JSON_CONTENT_TYPE);
+    }
+
+    /**
+     * @return whether the message context carries a JSON payload
+     */
+    public static boolean hasPayload(MessageContext axis2MsgCtx) {
+        return JsonUtil.hasAJsonPayload(axis2MsgCtx);
+    }
+
+    /**
+     * set the header and the fields of the JSON payload of the message context on an ISOMsg.
+     *
+     * @param axis2MsgCtx the message context with a JSON payload
+     * @param isoMsg      the message to set the fields on
+     * @param withHeader  whether to set the header of the payload
+     * @throws ISOException if the payload isn't a flat JSON object or a field doesn't fit
+     *                      its packager
+     */
+    public static void setFields(MessageContext axis2MsgCtx, ISOMsg isoMsg, boolean withHeader)
+            throws ISOException {
+        String json = JsonUtil.jsonPayloadToString(axis2MsgCtx);
+        if (json == null) {
+            throw new ISOException("Invalid ISO8583 JSON payload: the message has no JSON payload");
+        }
+        new Parser(json).readMessage(isoMsg, withHeader);
+    }
+
+    private static void appendMember(StringBuilder json, String name, String value) {
+        if (json.length() > 1) {
+            json.append(',');
+        }
+        json.append('"').append(name).append("\":");
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        json.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        json.append(ch);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Parser of the flat JSON object, values may be strings, numbers, booleans or null.
+     */
+    private static class Parser {
+        private final String json;
+        private int position;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        void readMessage(ISOMsg isoMsg, boolean withHeader) throws ISOException {
+            readObject(isoMsg, withHeader);
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+            if (position < json.length()) {
+                throw error("unexpected content after the object at " + position);
+            }
+        }
+
+        private void readObject(ISOMsg isoMsg, boolean withHeader) throws ISOException {
+            expect('{');
+            if (peek() == '}') {
+                position++;
+                return;
+            }
+            do {
+                String name = readString();
+                expect(':');
+                String value = readValue();
+                if (HEADER.equals(name)) {
+                    if (withHeader && value != null) {
+                        isoMsg.setHeader(decodeHeader(value));
+                    }
+                } else {
+                    int fieldID = ISO8583PayloadReader.parseFieldId(name);
+                    if (fieldID < 0) {
+                        throw error("unknown member " + name);
+                    }
+                    if (value != null) {
+                        isoMsg.set(fieldID, value);
+                    }
+                }
+            } while (next(',', '}') == ',');
+        }
+
+        private String readValue() throws ISOException {
+            char ch = peek();
+            if (ch == '"') {
+                return readString();
+            }
+            int start = position;
+            while (position < json.length() && ",}] \t\r\n".indexOf(json.charAt(position)) < 0) {
+                position++;
+            }
+            String literal = json.substring(start, position);
+            if (literal.isEmpty() || literal.charAt(0) == '{' || literal.charAt(0) == '[') {
+                throw error("field values must be strings or numbers at " + start);
+            }
+            return "null".equals(literal) ? null : literal;
+        }
+
+        private String readString() throws ISOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (position >= json.length()) {
+                    throw error("unterminated string");
+                }
+                char ch = json.charAt(position++);
+                if (ch == '"') {
+                    return value.toString();
+                } else if (ch != '\\') {
+                    value.append(ch);
+                    continue;
+                }
+                if (position >= json.length()) {
+                    throw error("unterminated string");
+                }
+                char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        value.append(readUnicodeEscape());
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+        }
+
+        private char readUnicodeEscape() throws ISOException {
+            if (position + 4 > json.length()) {
+                throw error("unterminated unicode escape at " + position);
+            }
+            int ch = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(json.charAt(position + i), 16);
+                if (digit < 0) {
+                    throw error("invalid unicode escape at " + position);
+                }
+                ch = ch << 4 | digit;
+            }
+            position += 4;
+            return (char) ch;
+        }
+
+        private byte[] decodeHeader(String value) throws ISOException {
+            try {
+                return Base64.getDecoder().decode(value);
+            } catch (IllegalArgumentException e) {
+                throw error("the header is not Base64, " + e.getMessage());
+            }
+        }
+
+        private static ISOException error(String message) {
+            return new ISOException("Invalid ISO8583 JSON payload: " + message);
+        }
+
+        private char peek() throws ISOException {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+            if (position >= json.length()) {
+                throw error("unexpected end of the payload");
+            }
+            return json.charAt(position);
+        }
+
+        private void expect(char expected) throws ISOException {
+            if (peek() != expected) {
+                throw error("expected '" + expected + "' at " + position);
+            }
+            position++;
+        }
+
+        private char next(char first, char second) throws ISOException {
+            char ch = peek();
+            if (ch != first && ch != second) {
+                throw error("expected '" + first + "' or '" + second + "' at " + position);
+            }
+            position++;
+            return ch;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.message;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMFactory;
+import org.jpos.iso.ISOBasePackager;
+import org.jpos.iso.ISOException;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Builds the {@code <ISOMessage><data><field id="n">} payload straight from the packed
+ * message bytes. Elements are created with their parent, so no ISOMsg and no
+ * intermediate tree is built, and the field ids come from a shared table.
+ */
+public class ISO8583MessageBuilder {
+    private static final String[] FIELD_IDS = new String[256];
+
+    static {
+        for (int i = 0; i < FIELD_IDS.length; i++) {
+            FIELD_IDS[i] = String.valueOf(i).intern();
+        }
+    }
+
+    private final ISO8583MessageReader reader;
+    private final boolean deferred;
+    private final boolean headerView;
+
+    public ISO8583MessageBuilder(ISOBasePackager packager) {
+        this(packager, false, false);
+    }
+
+    /**
+     * @param deferred   whether to build the payload as an element backed by an
+     *                   {@link ISO8583DataSource}, expanded only when it is navigated
+     * @param headerView whether the payload shows the ISO header as Base64 text, it is
+     *                   carried as raw bytes by {@link #getHeader(byte[])} either way
+     */
+    public ISO8583MessageBuilder(ISOBasePackager packager, boolean deferred, boolean headerView) {
+        this.reader = ISO8583MessageReader.getReader(packager);
+        this.deferred = deferred;
+        this.headerView = headerView;
+    }
+
+    /**
+     * build the payload of a packed message.
+     *
+     * @param message the packed message, including the ISO header
+     * @return the ISOMessage element
+     * @throws ISOException if the message does not match the packager, deferred payloads
+     *                      report it when they are expanded
+     */
+    public OMElement build(byte[] message) throws ISOException {
+        final OMFactory factory = OMAbstractFactory.getOMFactory();
+        if (deferred) {
+            return factory.createOMElement(new ISO8583DataSource(message, reader.getPackager(), headerView),
+                    ISO8583Constant.TAG_MSG, null);
+        }
+        final OMElement parentElement = factory.createOMElement(ISO8583Constant.TAG_MSG, null);
+        reader.read(message, new ISO8583MessageReader.FieldVisitor() {
+            private OMElement data;
+
+            @Override
+            public void header(byte[] header) {
+                if (!headerView) {
+                    return;
+                }
+                OMElement headerElement = factory.createOMElement(ISO8583Constant.HEADER, null, parentElement);
+                headerElement.setText(Base64.getEncoder().encodeToString(header));
+            }
+
+            @Override
+            public void field(int id, String value) {
+                if (data == null) {
+                    data = factory.createOMElement(ISO8583Constant.TAG_DATA, null, parentElement);
+                }
+                OMElement field = factory.createOMElement(ISO8583Constant.TAG_FIELD, null, data);
+                field.addAttribute(ISO8583Constant.TAG_ID, fieldId(id), null);
+                field.setText(value);
+            }
+        });
+        return parentElement;
+    }
+
+    /**
+     * build the JSON payload of a packed message.
+     *
+     * @param message the packed message, including the ISO header
+     * @return the JSON object as UTF-8 bytes, see {@link ISO8583JsonPayload}
+     * @throws ISOException if the message does not match the packager
+     */
+    public byte[] buildJson(byte[] message) throws ISOException {
+        return ISO8583JsonPayload.toJson(reader, message, headerView);
+    }
+
+    /**
+     * get the ISO header of a packed message.
+     *
+     * @param message the packed message, including the ISO header
+     * @return a copy of the header bytes, or null if the packager has no header
+     * @throws ISOException if the message is shorter than the header
+     */
+    public byte[] getHeader(byte[] message) throws ISOException {
+        int headerLength = reader.getPackager().getHeaderLength();
+        if (headerLength <= 0) {
+            return null;
+        }
+        if (message.length < headerLength) {
+            throw new ISOException("Message of " + message.length + " bytes is shorter than the header");
+        }
+        return Arrays.copyOf(message, headerLength);
+    }
+
+    /**
+     * @return the shared string of a field number
+     */
+    public static String fieldId(int id) {
+        return id < FIELD_IDS.length ? FIELD_IDS[id] : String.valueOf(id);
+    }
+}
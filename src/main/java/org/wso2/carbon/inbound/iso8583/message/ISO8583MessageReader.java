@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.message;
+
+import org.jpos.iso.ISOBasePackager;
+import org.jpos.iso.ISOBitMapPackager;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOFieldPackager;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOMsgFieldPackager;
+import org.wso2.carbon.inbound.iso8583.packager.ISO8583FieldCodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Walks the fields of a packed ISO8583 message with the field packagers of a packager,
+ * without unpacking it into an ISOMsg first. The message is indexed by an
+ * {@link ISO8583MessageView} and every field present in the bitmap is decoded once and
+ * handed to a {@link FieldVisitor}. Layouts the walker does not handle
+ * itself (a nested message as field 0 or a tertiary bitmap) are unpacked through an
+ * ISOMsg instead, so every packager gives the same result.
+ */
+public class ISO8583MessageReader {
+    private static final Map<ISOBasePackager, ISO8583MessageReader> readers =
+            new ConcurrentHashMap<ISOBasePackager, ISO8583MessageReader>();
+
+    private final ISOBasePackager packager;
+    private final ISOFieldPackager[] fields;
+    private final boolean streamable;
+    private final ThreadLocal<ISO8583MessageView> views;
+
+    /**
+     * Receives the header and the fields of a message in field number order.
+     */
+    public interface FieldVisitor {
+
+        /**
+         * @param header the ISO header, only called when the packager has a header length
+         */
+        void header(byte[] header);
+
+        /**
+         * @param id    the field number
+         * @param value the field value, binary fields as a hex string
+         */
+        void field(int id, String value);
+    }
+
+    private ISO8583MessageReader(ISOBasePackager packager) {
+        this.packager = packager;
+        this.fields = ISO8583FieldCodecs.getFieldPackagers(packager);
+        boolean tertiaryBitMap = fields.length > 128 && fields[65] instanceof ISOBitMapPackager;
+        this.streamable = fields.length > 1 && !(fields[0] instanceof ISOMsgFieldPackager) && !tertiaryBitMap;
+        final int headerLength = packager.getHeaderLength();
+        // transient walks reuse one view per thread, which is one per connection for the blocking listener
+        this.views = new ThreadLocal<ISO8583MessageView>() {
+            @Override
+            protected ISO8583MessageView initialValue() {
+                return new ISO8583MessageView(fields, headerLength);
+            }
+        };
+    }
+
+    /**
+     * get the reader of a packager. Readers are created once per packager and shared.
+     */
+    public static ISO8583MessageReader getReader(ISOBasePackager packager) {
+        ISO8583MessageReader reader = readers.get(packager);
+        if (reader == null) {
+            reader = new ISO8583MessageReader(packager);
+            readers.put(packager, reader);
+        }
+        return reader;
+    }
+
+    public ISOBasePackager getPackager() {
+        return packager;
+    }
+
+    /**
+     * decode the fields of a packed message.
+     *
+     * @param message the packed message, including the ISO header
+     * @param visitor receives the header and the fields
+     * @throws ISOException if the message does not match the packager
+     */
+    public void read(byte[] message, FieldVisitor visitor) throws ISOException {
+        if (!streamable) {
+            readUnpacked(message, visitor);
+            return;
+        }
+        ISO8583MessageView view = views.get();
+        try {
+            view.wrap(message);
+            if (view.getHeaderLength() > 0) {
+                visitor.header(view.getHeader());
+            }
+            for (int i = 0; i < view.getFieldCount(); i++) {
+                int id = view.getFieldNumber(i);
+                visitor.field(id, view.getString(id));
+            }
+        } finally {
+            view.clear();
+        }
+    }
+
+    /**
+     * create a view over a packed message, decoding its fields only when they are read.
+     *
+     * @param message the packed message, including the ISO header
+     * @return the view, or null if the packager layout can't be viewed
+     * @throws ISOException if the message does not match the packager
+     */
+    public ISO8583MessageView view(byte[] message) throws ISOException {
+        if (!streamable) {
+            return null;
+        }
+        return new ISO8583MessageView(fields, packager.getHeaderLength()).wrap(message);
+    }
+
+    /**
+     * re-emit a packed message with the fields of an ISOMsg that differ from it spliced in.
+     * The fields are compared by value and only the changed ones are packed, every other
+     * byte is copied from the original message.
+     *
+     * @param message the packed message the ISOMsg was built from
+     * @param isoMsg  the message to send
+     * @return the packed message, the original array if nothing changed, or null if the
+     * fields present differ from the original or the header changed its length, and the
+     * ISOMsg has to be packed instead
+     * @throws ISOException if a changed field can't be packed
+     */
+    public byte[] splice(byte[] message, ISOMsg isoMsg) throws ISOException {
+        if (!streamable || isoMsg.getMaxField() >= fields.length) {
+            return null;
+        }
+        ISO8583MessageView view = views.get();
+        try {
+            view.wrap(message);
+            return splice(view, isoMsg);
+        } finally {
+            view.clear();
+        }
+    }
+
+    private byte[] splice(ISO8583MessageView view, ISOMsg isoMsg) throws ISOException {
+        byte[] message = view.getMessage();
+        int headerLength = view.getHeaderLength();
+        byte[] header = isoMsg.getHeader();
+        boolean headerChanged = false;
+        if (headerLength > 0 && header != null) {
+            if (header.length != headerLength) {
+                return null;
+            }
+            for (int i = 0; i < headerLength && !headerChanged; i++) {
+                headerChanged = header[i] != message[i];
+            }
+        }
+        boolean bitMap = fields[1] instanceof ISOBitMapPackager;
+        int isoMsgFields = 0;
+        for (int i = 0; i <= isoMsg.getMaxField(); i++) {
+            if (isoMsg.hasField(i) && !(i == 1 && bitMap)) {
+                isoMsgFields++;
+            }
+        }
+        if (isoMsgFields != view.getFieldCount()) {
+            return null;
+        }
+        boolean[] changed = new boolean[fields.length];
+        boolean anyChanged = headerChanged;
+        for (int i = 0; i < view.getFieldCount(); i++) {
+            int id = view.getFieldNumber(i);
+            String value = view.getString(id);
+            if (!isoMsg.hasField(id) || value == null) {
+                return null;
+            }
+            if (!value.equals(isoMsg.getString(id))) {
+                changed[id] = true;
+                anyChanged = true;
+            }
+        }
+        if (!anyChanged) {
+            return message;
+        }
+        ByteArrayOutputStream spliced = new ByteArrayOutputStream(message.length + 16);
+        int copied = 0;
+        if (headerChanged) {
+            spliced.write(header, 0, headerLength);
+            copied = headerLength;
+        }
+        for (int i = 0; i < view.getFieldCount(); i++) {
+            int id = view.getFieldNumber(i);
+            if (changed[id]) {
+                int offset = view.getOffset(id);
+                spliced.write(message, copied, offset - copied);
+                byte[] packed = fields[id].pack(isoMsg.getComponent(id));
+                spliced.write(packed, 0, packed.length);
+                copied = offset + view.getPackedLength(id);
+            }
+        }
+        spliced.write(message, copied, message.length - copied);
+        return spliced.toByteArray();
+    }
+
+    /**
+     * walk the fields through an ISOMsg, for the layouts not handled by {@link #read}.
+     */
+    private void readUnpacked(byte[] message, FieldVisitor visitor) throws ISOException {
+        ISOMsg isoMsg = new ISOMsg();
+        isoMsg.setPackager(packager);
+        isoMsg.unpack(message);
+        if (isoMsg.getHeader() != null) {
+            visitor.header(isoMsg.getHeader());
+        }
+        for (int i = 0; i <= isoMsg.getMaxField(); i++) {
+            if (isoMsg.hasField(i)) {
+                visitor.field(i, isoMsg.getString(i));
+            }
+        }
+    }
+}
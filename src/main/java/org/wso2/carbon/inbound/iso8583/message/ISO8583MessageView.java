@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.message;
+
+import org.jpos.iso.IFA_BITMAP;
+import org.jpos.iso.ISOBitMap;
+import org.jpos.iso.ISOBitMapPackager;
+import org.jpos.iso.ISOComponent;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOFieldPackager;
+import org.jpos.iso.ISOUtil;
+import org.wso2.carbon.inbound.iso8583.packager.ISO8583FieldCodec;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Flyweight view over a packed ISO8583 message. Wrapping a message parses the bitmap once,
+ * visiting only the bits that are set, and records the offset and packed length of every
+ * field present; a field value is only decoded when it is first read. Fields of compiled
+ * codecs are measured without decoding them, other field packagers are decoded while
+ * indexing and their value kept.
+ * <p>
+ * A view can be wrapped around one message after the other, so a connection or a thread
+ * can keep using the same instance. Views are not thread safe.
+ */
+public class ISO8583MessageView {
+    private static final int BITMAP_WORD_CHARS = 16;
+    private final ISOFieldPackager[] fields;
+    private final int headerLength;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] present;
+    private final String[] values;
+    private int fieldCount;
+    private byte[] message;
+
+    ISO8583MessageView(ISOFieldPackager[] fields, int headerLength) {
+        this.fields = fields;
+        this.headerLength = headerLength;
+        this.offsets = new int[fields.length];
+        this.lengths = new int[fields.length];
+        this.present = new int[fields.length];
+        this.values = new String[fields.length];
+        Arrays.fill(offsets, -1);
+    }
+
+    /**
+     * index a packed message, dropping the message viewed before.
+     *
+     * @param message the packed message, including the ISO header
+     * @return this view
+     * @throws ISOException if the message does not match the packager
+     */
+    public ISO8583MessageView wrap(byte[] message) throws ISOException {
+        clear();
+        this.message = message;
+        try {
+            if (message.length < headerLength) {
+                throw new ISOException("message is shorter than its header");
+            }
+            int consumed = headerLength;
+            if (fields[0] != null && !(fields[0] instanceof ISOBitMapPackager)) {
+                consumed = index(0, consumed);
+            }
+            if (fields[1] != null && fields[1].getClass() == IFA_BITMAP.class && fields[1].getLength() == 16) {
+                consumed = indexAsciiBitMap(consumed);
+            } else if (fields[1] instanceof ISOBitMapPackager) {
+                ISOBitMap component = new ISOBitMap(-1);
+                consumed += fields[1].unpack(component, message, consumed);
+                BitSet bitMap = (BitSet) component.getValue();
+                int maxField = Math.min(fields.length, bitMap.size());
+                for (int i = bitMap.nextSetBit(2); i >= 0 && i < maxField; i = bitMap.nextSetBit(i + 1)) {
+                    consumed = index(i, consumed);
+                }
+            } else {
+                for (int i = 1; i < fields.length; i++) {
+                    if (fields[i] != null) {
+                        consumed = index(i, consumed);
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ISOException("message is shorter than its fields", e);
+        } catch (ISOException e) {
+            clear();
+            throw e;
+        }
+        return this;
+    }
+
+    /**
+     * forget the viewed message, so a reused view doesn't keep it reachable.
+     */
+    public void clear() {
+        for (int i = 0; i < fieldCount; i++) {
+            int id = present[i];
+            offsets[id] = -1;
+            values[id] = null;
+        }
+        fieldCount = 0;
+        message = null;
+    }
+
+    public byte[] getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the ISO header, or null if the packager has no header length
+     */
+    public byte[] getHeader() {
+        return headerLength > 0 ? Arrays.copyOf(message, headerLength) : null;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    public String getMTI() throws ISOException {
+        return getString(0);
+    }
+
+    /**
+     * @return the number of fields present, the MTI included
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param index the position of the field in the message, from 0 to {@link #getFieldCount()}
+     * @return the number of the field at the position
+     */
+    public int getFieldNumber(int index) {
+        return present[index];
+    }
+
+    public boolean hasField(int id) {
+        return id >= 0 && id < offsets.length && offsets[id] >= 0;
+    }
+
+    /**
+     * @return the offset of a field in the message, or -1 if it isn't present
+     */
+    public int getOffset(int id) {
+        return hasField(id) ? offsets[id] : -1;
+    }
+
+    /**
+     * @return the packed length of a field, including its length prefix
+     */
+    public int getPackedLength(int id) {
+        return hasField(id) ? lengths[id] : 0;
+    }
+
+    /**
+     * get the value of a field, decoding it on first access.
+     *
+     * @return the value, binary fields as a hex string, or null if the field isn't present
+     * @throws ISOException if the field can't be decoded
+     */
+    public String getString(int id) throws ISOException {
+        if (!hasField(id)) {
+            return null;
+        }
+        String value = values[id];
+        if (value == null) {
+            ISOComponent component = fields[id].createComponent(id);
+            fields[id].unpack(component, message, offsets[id]);
+            value = toString(component.getValue());
+            values[id] = value;
+        }
+        return value;
+    }
+
+    /**
+     * index the fields of a hex ASCII bitmap without building a BitSet. The primary and
+     * secondary bitmap are read into words with field 1 in the lowest bit, and only the
+     * set bits are visited.
+     */
+    private int indexAsciiBitMap(int offset) throws ISOException {
+        long primary = bitMapWord(offset);
+        int consumed = offset + BITMAP_WORD_CHARS;
+        long secondary = 0;
+        if ((primary & 1) != 0) {
+            secondary = bitMapWord(consumed);
+            consumed += BITMAP_WORD_CHARS;
+        }
+        // field 1 only flags the secondary bitmap
+        long bits = primary & ~1L;
+        while (bits != 0) {
+            consumed = indexBit(Long.numberOfTrailingZeros(bits) + 1, consumed);
+            bits &= bits - 1;
+        }
+        bits = secondary;
+        while (bits != 0) {
+            consumed = indexBit(Long.numberOfTrailingZeros(bits) + 65, consumed);
+            bits &= bits - 1;
+        }
+        return consumed;
+    }
+
+    private int indexBit(int id, int offset) throws ISOException {
+        if (id >= fields.length) {
+            // like jPOS, bits the packager has no field for are ignored
+            return offset;
+        }
+        return index(id, offset);
+    }
+
+    /**
+     * @return 16 hex characters as a word, the first field in the lowest bit
+     */
+    private long bitMapWord(int offset) throws ISOException {
+        if (offset + BITMAP_WORD_CHARS > message.length) {
+            throw new ISOException("message is shorter than its bitmap");
+        }
+        long word = 0;
+        for (int i = 0; i < BITMAP_WORD_CHARS; i++) {
+            int digit = Character.digit(message[offset + i], 16);
+            if (digit < 0) {
+                throw new ISOException("Invalid bitmap character '" + (char) message[offset + i] + "'");
+            }
+            word = (word << 4) | digit;
+        }
+        return Long.reverse(word);
+    }
+
+    private int index(int id, int offset) throws ISOException {
+        if (fields[id] == null) {
+            throw new ISOException("field packager '" + id + "' is null");
+        }
+        int length;
+        if (fields[id] instanceof ISO8583FieldCodec) {
+            length = ((ISO8583FieldCodec) fields[id]).getPackedLength(message, offset);
+        } else {
+            ISOComponent component = fields[id].createComponent(id);
+            length = fields[id].unpack(component, message, offset);
+            values[id] = toString(component.getValue());
+        }
+        offsets[id] = offset;
+        lengths[id] = length;
+        present[fieldCount++] = id;
+        return offset + length;
+    }
+
+    static String toString(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof byte[]) {
+            return ISOUtil.hexString((byte[]) value);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.message;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+
+import javax.xml.namespace.QName;
+import java.util.Iterator;
+
+/**
+ * Reads the {@code <ISOMessage><data><field id="n">} payload back into an ISOMsg for the
+ * reply senders. The element names are shared QNames and the field ids are parsed
+ * without going through Integer.parseInt, so the cost depends only on the fields present.
+ */
+public class ISO8583PayloadReader {
+    private static final Log log = LogFactory.getLog(ISO8583PayloadReader.class);
+    public static final QName HEADER = new QName(ISO8583Constant.HEADER);
+    public static final QName DATA = new QName(ISO8583Constant.TAG_DATA);
+    public static final QName ID = new QName(ISO8583Constant.TAG_ID);
+
+    private ISO8583PayloadReader() {
+    }
+
+    /**
+     * set the fields of the payload on an ISOMsg.
+     *
+     * @param payload the ISOMessage element
+     * @param isoMsg  the message to set the fields on
+     * @throws ISOException if a field value doesn't fit its packager
+     */
+    public static void setFields(OMElement payload, ISOMsg isoMsg) throws ISOException {
+        OMElement data = payload.getFirstChildWithName(DATA);
+        if (data == null) {
+            return;
+        }
+        Iterator fields = data.getChildrenWithLocalName(ISO8583Constant.TAG_FIELD);
+        while (fields.hasNext()) {
+            OMElement element = (OMElement) fields.next();
+            String id = element.getAttributeValue(ID);
+            int fieldID = parseFieldId(id);
+            if (fieldID < 0) {
+                log.warn("The fieldID does not contain a parsable integer: " + id);
+                continue;
+            }
+            isoMsg.set(fieldID, element.getText());
+        }
+    }
+
+    /**
+     * @return the text of the header element, or null if the payload has no header
+     */
+    public static String getHeader(OMElement payload) {
+        OMElement header = payload.getFirstChildWithName(HEADER);
+        return header != null ? header.getText() : null;
+    }
+
+    /**
+     * @return the field number, or -1 if the id is not a number
+     */
+    static int parseFieldId(String id) {
+        if (id == null || id.isEmpty() || id.length() > 4) {
+            return -1;
+        }
+        int fieldID = 0;
+        for (int i = 0; i < id.length(); i++) {
+            int digit = id.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            fieldID = fieldID * 10 + digit;
+        }
+        return fieldID;
+    }
+}
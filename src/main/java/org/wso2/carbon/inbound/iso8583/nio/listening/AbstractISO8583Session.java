@@ -0,0 +1,505 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.inbound.InboundProcessorParams;
+import org.jpos.iso.ISODate;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583FlowControl;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583PackagerSelector;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583ResponseRules;
+
+/**
+ * State shared by the selector and the completion handler based sessions:
+ * the frame decoder, the dispatch of requests to the worker pool and the
+ * queue of framed responses waiting to be written.
+ */
+public abstract class AbstractISO8583Session {
+	private static final Log log = LogFactory.getLog(AbstractISO8583Session.class);
+	protected static final int MAX_GATHER = 64;
+	protected final AtomicBoolean closed = new AtomicBoolean();
+	protected final ExecutorService threadPool;
+	protected final InboundProcessorParams params;
+	protected final ISO8583FrameCodec codec;
+	protected final ISO8583FrameDecoder decoder;
+	protected final ISO8583BufferPool bufferPool;
+	protected final ISO8583MessageInject msgInject;
+	protected final ISO8583FlowControl flowControl;
+	protected final ISO8583SerialExecutor serialExecutor;
+	protected final ISO8583InFlightTable inFlightTable;
+	protected final ISO8583TimerWheel timerWheel;
+	private final long idleTimeoutNanos;
+	private final boolean echoProbe;
+	private final long responseTimeout;
+	private final String timeoutResponseCode;
+	private final AtomicInteger echoTrace = new AtomicInteger();
+	private final Runnable idleCheck = new Runnable() {
+		@Override
+		public void run() {
+			checkIdle();
+		}
+	};
+	private volatile long lastActivity = System.nanoTime();
+	private volatile boolean probeSent;
+	protected final Queue<ByteBuffer> outboundQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	protected final AtomicBoolean writeScheduled = new AtomicBoolean();
+	protected final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_GATHER];
+	protected int writeCount;
+
+	protected AbstractISO8583Session(ExecutorService threadPool, ISO8583FlowControl flowControl,
+			ISO8583TimerWheel timerWheel, InboundProcessorParams params, ISO8583FrameCodec codec, int maxMessageLength,
+			ISO8583BufferPool bufferPool) {
+		this.threadPool = threadPool;
+		this.flowControl = flowControl;
+		boolean ordered = Boolean.parseBoolean(params.getProperties().getProperty(
+				ISO8583Constant.INBOUND_ORDERED_EXECUTION, ISO8583Constant.ORDERED_EXECUTION));
+		this.serialExecutor = ordered ? new ISO8583SerialExecutor(threadPool) : null;
+		this.inFlightTable = ISO8583InFlightTable.create(params);
+		this.timerWheel = timerWheel;
+		// the listener only creates the timer when the timeouts parse
+		this.idleTimeoutNanos = timerWheel != null ? TimeUnit.MILLISECONDS.toNanos(getIdleTimeout(params)) : 0;
+		this.echoProbe = ISO8583Constant.IDLE_POLICY_ECHO.equalsIgnoreCase(params.getProperties().getProperty(
+				ISO8583Constant.INBOUND_IDLE_POLICY));
+		this.responseTimeout = timerWheel != null ? getResponseTimeout(params) : 0;
+		this.timeoutResponseCode = params.getProperties().getProperty(ISO8583Constant.INBOUND_TIMEOUT_RESPONSE_CODE,
+				ISO8583Constant.TIMEOUT_RESPONSE_CODE);
+		this.params = params;
+		this.codec = codec;
+		this.bufferPool = bufferPool;
+		this.decoder = new ISO8583FrameDecoder(codec, maxMessageLength, bufferPool);
+		this.msgInject = new ISO8583MessageInject(params, this);
+	}
+
+	public abstract SocketAddress getRemoteAddress();
+
+	public InboundProcessorParams getParams() {
+		return params;
+	}
+
+	/**
+	 * create the timer of a listener.
+	 *
+	 * @return the timer, or null if neither the idle timeout nor the response
+	 *         timeout is set
+	 * @throws NumberFormatException
+	 *             if a timeout is not a number
+	 */
+	static ISO8583TimerWheel createTimerWheel(InboundProcessorParams params) {
+		if (getIdleTimeout(params) > 0 || getResponseTimeout(params) > 0) {
+			return new ISO8583TimerWheel("ISO8583-timer-" + params.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the idle timeout of the connections in milliseconds, 0 if they
+	 *         may stay idle
+	 */
+	static long getIdleTimeout(InboundProcessorParams params) {
+		return Long.parseLong(params.getProperties().getProperty(ISO8583Constant.INBOUND_IDLE_TIMEOUT,
+				ISO8583Constant.IDLE_TIMEOUT));
+	}
+
+	/**
+	 * @return the time in milliseconds a request may wait for its response, 0
+	 *         to wait forever
+	 */
+	static long getResponseTimeout(InboundProcessorParams params) {
+		return Long.parseLong(params.getProperties().getProperty(ISO8583Constant.INBOUND_RESPONSE_TIMEOUT,
+				ISO8583Constant.RESPONSE_TIMEOUT));
+	}
+
+	/**
+	 * start watching the connection for idleness. Called once the session is
+	 * ready to be closed from the timer.
+	 */
+	protected void startIdleTimer() {
+		if (timerWheel != null && idleTimeoutNanos > 0) {
+			timerWheel.schedule(idleCheck, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos));
+		}
+	}
+
+	/**
+	 * close a connection that stayed idle. Called on the timer thread.
+	 */
+	protected void closeIdle() {
+		close();
+	}
+
+	/**
+	 * close the connection.
+	 */
+	public abstract void close();
+
+	/**
+	 * get the writer going for the responses queued by {@link #send}. Only
+	 * called by the thread that switched writeScheduled on.
+	 */
+	protected abstract void scheduleWrite();
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * hand every complete frame in the decoder to the worker pool.
+	 *
+	 * @return false if the frames were not valid and the session was closed
+	 */
+	protected boolean handleFrames() {
+		lastActivity = System.nanoTime();
+		try {
+			byte[] data;
+			while ((data = decoder.nextFrame()) != null) {
+				if (log.isDebugEnabled()) {
+					log.debug("Got: " + new String(data));
+				}
+				handleClientRequest(data);
+			}
+			return true;
+		} catch (ProtocolException e) {
+			log.error(e.getMessage() + ", closing connection from: " + getRemoteAddress());
+			close();
+			return false;
+		}
+	}
+
+	private void handleClientRequest(byte[] message) {
+		if (probeSent && isEchoResponse(message)) {
+			probeSent = false;
+			log.debug("Echo test answered by " + getRemoteAddress());
+			return;
+		}
+		if (flowControl != null && flowControl.isDecline() && flowControl.isPaused()) {
+			decline(message);
+			return;
+		}
+		ISO8583TimerWheel.Timeout timeout = null;
+		if (timerWheel != null && responseTimeout > 0) {
+			timeout = timerWheel.schedule(new ResponseTimeout(message), responseTimeout);
+		}
+		Runnable handler = new ISO8583MessageRequestHandler(message, msgInject, params, timeout);
+		if (inFlightTable != null) {
+			handler = track(message, handler);
+		}
+		if (flowControl != null) {
+			flowControl.begin();
+			handler = flowControl.wrap(handler);
+		}
+		try {
+			if (serialExecutor != null) {
+				// requests of a connection are handled in the order they were read
+				serialExecutor.execute(handler);
+			} else {
+				threadPool.submit(handler);
+			}
+
+		} catch (RejectedExecutionException re) {
+			if (flowControl != null) {
+				flowControl.end();
+			}
+			if (timeout != null && !timeout.cancel()) {
+				return;
+			}
+			// answer the terminal instead of letting it time out
+			log.warn("Worker pool has reached the maximum capacity, declining the request from "
+					+ getRemoteAddress());
+			decline(message);
+		}
+	}
+
+	/**
+	 * record the request in the in-flight table before it is injected, with
+	 * the time it was read.
+	 */
+	private Runnable track(final byte[] message, final Runnable handler) {
+		final long received = System.nanoTime();
+		return new Runnable() {
+			@Override
+			public void run() {
+				inFlightTable.request(message, received, getRemoteAddress());
+				handler.run();
+			}
+		};
+	}
+
+	/**
+	 * @return whether the session should stop reading until the worker pool
+	 *         drains to the low watermark
+	 */
+	protected boolean isReadPaused() {
+		return flowControl != null && !flowControl.isDecline() && flowControl.isPaused();
+	}
+
+	/**
+	 * answer a request that the worker pool can't take with a system busy
+	 * response, without mediating it.
+	 */
+	private void decline(byte[] message) {
+		byte[] response = declined(message, ISO8583Constant.SYSTEM_BUSY_RESPONSE_CODE);
+		if (response != null) {
+			send(response);
+		}
+	}
+
+	/**
+	 * build the response declining a request.
+	 *
+	 * @return the packed response, or null if the request can't be unpacked
+	 */
+	private byte[] declined(byte[] message, String responseCode) {
+		try {
+			ISO8583PackagerSelector packagerSelector = ISO8583PackagerSelector.getSelector(params);
+			ISOMsg isoMsg = new ISOMsg();
+			isoMsg.setPackager(packagerSelector.getPackager(packagerSelector.select(message)));
+			isoMsg.unpack(message);
+			ISO8583ResponseRules.getInstance().decline(isoMsg, responseCode);
+			return isoMsg.pack();
+		} catch (ISOException e) {
+			log.warn("Couldn't decline the request from " + getRemoteAddress() + ", dropping it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Answers a request with the timeout response code when the sequence
+	 * didn't respond in time. The response of the sequence is dropped if it
+	 * still comes.
+	 */
+	private class ResponseTimeout implements Runnable {
+		private final byte[] message;
+
+		ResponseTimeout(byte[] message) {
+			this.message = message;
+		}
+
+		@Override
+		public void run() {
+			if (closed.get()) {
+				return;
+			}
+			log.warn("No response within " + responseTimeout + " ms to the request from " + getRemoteAddress()
+					+ ", answering with response code " + timeoutResponseCode);
+			byte[] response = declined(message, timeoutResponseCode);
+			if (response != null) {
+				reply(response);
+			}
+		}
+	}
+
+	/**
+	 * close the connection or probe it with an echo test once it stayed idle
+	 * for the idle timeout. Runs on the timer thread.
+	 */
+	private void checkIdle() {
+		if (closed.get()) {
+			return;
+		}
+		long idle = System.nanoTime() - lastActivity;
+		if (idle < idleTimeoutNanos) {
+			// the peer sent something since, the probe is no longer needed
+			probeSent = false;
+			timerWheel.schedule(idleCheck, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos - idle) + 1);
+			return;
+		}
+		if (echoProbe && !probeSent) {
+			probeSent = true;
+			sendEcho();
+			timerWheel.schedule(idleCheck, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos));
+			return;
+		}
+		log.info("Closing connection from " + getRemoteAddress() + " idle for "
+				+ TimeUnit.NANOSECONDS.toMillis(idle) + " ms");
+		closeIdle();
+	}
+
+	/**
+	 * send a network management echo test (0800, field 70 = 301) to an idle
+	 * connection.
+	 */
+	private void sendEcho() {
+		try {
+			ISOMsg isoMsg = new ISOMsg();
+			isoMsg.setPackager(ISO8583PackagerSelector.getSelector(params).getPackager(null));
+			isoMsg.setMTI(ISO8583Constant.ECHO_MTI);
+			isoMsg.set(7, ISODate.getDateTime(new Date()));
+			isoMsg.set(11, String.format("%06d", (echoTrace.incrementAndGet() & Integer.MAX_VALUE) % 1000000));
+			isoMsg.set(70, ISO8583Constant.ECHO_TEST_CODE);
+			log.debug("Sending echo test to idle connection from " + getRemoteAddress());
+			send(isoMsg.pack());
+		} catch (ISOException e) {
+			log.warn("Couldn't pack the echo test for " + getRemoteAddress(), e);
+		}
+	}
+
+	/**
+	 * @return whether a frame is the network management response to an echo
+	 *         test
+	 */
+	private boolean isEchoResponse(byte[] message) {
+		try {
+			ISO8583PackagerSelector packagerSelector = ISO8583PackagerSelector.getSelector(params);
+			ISOMsg isoMsg = new ISOMsg();
+			isoMsg.setPackager(packagerSelector.getPackager(packagerSelector.select(message)));
+			isoMsg.unpack(message);
+			String mti = isoMsg.getMTI();
+			return mti.length() == 4 && mti.charAt(1) == '8' && mti.charAt(2) == '1'
+					&& ISO8583Constant.ECHO_TEST_CODE.equals(isoMsg.getString(70));
+		} catch (ISOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * queue the response of a mediated request, matching it to the request in
+	 * flight when correlation is configured. Safe to call from any thread.
+	 *
+	 * @param msg
+	 *            packed ISO response.
+	 */
+	public void reply(byte[] msg) {
+		if (inFlightTable != null) {
+			inFlightTable.response(msg, getRemoteAddress());
+		}
+		send(msg);
+	}
+
+	/**
+	 * queue the response of a mediated request packed from an ISOMsg, reading
+	 * the correlation fields from the message instead of the packed bytes.
+	 * Safe to call from any thread.
+	 *
+	 * @param isoMsg
+	 *            the ISO response the bytes were packed from.
+	 * @param msg
+	 *            packed ISO response.
+	 */
+	public void reply(ISOMsg isoMsg, byte[] msg) {
+		if (inFlightTable != null) {
+			inFlightTable.response(isoMsg, getRemoteAddress());
+		}
+		send(msg);
+	}
+
+	/**
+	 * log the correlation metrics before the connection is closed.
+	 */
+	protected void reportInFlight() {
+		if (inFlightTable != null) {
+			inFlightTable.report(getRemoteAddress());
+		}
+	}
+
+	/**
+	 * queue a packed iso message response for the client. Safe to call from
+	 * any thread.
+	 *
+	 * @param msg
+	 *            packed ISO response.
+	 */
+	public void send(byte[] msg) {
+		if (closed.get()) {
+			log.warn("Dropping response for closed connection from: " + getRemoteAddress());
+			return;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Sending" + msg);
+		}
+		ByteBuffer buf = bufferPool.acquire(codec.getPrefixLength() + msg.length);
+		try {
+			codec.encode(buf, msg);
+		} catch (IllegalArgumentException e) {
+			bufferPool.release(buf);
+			log.error("Dropping response for " + getRemoteAddress() + ", " + e.getMessage());
+			return;
+		}
+		buf.flip();
+		outboundQueue.add(buf);
+		if (closed.get()) {
+			// closed while queuing, the writer no longer drains the queue
+			releaseOutbound();
+		} else if (writeScheduled.compareAndSet(false, true)) {
+			scheduleWrite();
+		}
+	}
+
+	/**
+	 * move queued responses into the gathering write buffers.
+	 *
+	 * @return false if nothing is left to write and writeScheduled was
+	 *         switched off
+	 */
+	protected boolean fillWriteBuffers() {
+		for (;;) {
+			ByteBuffer buffer;
+			while (writeCount < MAX_GATHER && (buffer = outboundQueue.poll()) != null) {
+				writeBuffers[writeCount++] = buffer;
+			}
+			if (writeCount > 0) {
+				return true;
+			}
+			writeScheduled.set(false);
+			// a response queued after the poll above may have seen the flag still set
+			if (outboundQueue.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * give the fully written buffers back to the pool.
+	 *
+	 * @return true if all gathered buffers were written
+	 */
+	protected boolean releaseWritten() {
+		int written = 0;
+		while (written < writeCount && !writeBuffers[written].hasRemaining()) {
+			bufferPool.release(writeBuffers[written]);
+			written++;
+		}
+		if (written > 0) {
+			System.arraycopy(writeBuffers, written, writeBuffers, 0, writeCount - written);
+			Arrays.fill(writeBuffers, writeCount - written, writeCount, null);
+			writeCount -= written;
+		}
+		return writeCount == 0;
+	}
+
+	/**
+	 * give the gathered buffers back to the pool. Only called by the writer.
+	 */
+	protected void releaseWriteBuffers() {
+		for (int i = 0; i < writeCount; i++) {
+			bufferPool.release(writeBuffers[i]);
+			writeBuffers[i] = null;
+		}
+		writeCount = 0;
+	}
+
+	/**
+	 * give the buffers of queued responses that will not be written back to
+	 * the pool.
+	 */
+	protected void releaseOutbound() {
+		ByteBuffer buffer;
+		while ((buffer = outboundQueue.poll()) != null) {
+			bufferPool.release(buffer);
+		}
+	}
+}
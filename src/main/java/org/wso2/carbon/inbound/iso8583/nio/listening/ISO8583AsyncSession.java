@@ -0,0 +1,164 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.inbound.InboundProcessorParams;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583FlowControl;
+
+/**
+ * Session of a connection served by completion handlers. One read is always
+ * outstanding on the channel, and a write chain runs while responses are
+ * queued, so no thread waits on the connection.
+ */
+public class ISO8583AsyncSession extends AbstractISO8583Session {
+	private static final Log log = LogFactory.getLog(ISO8583AsyncSession.class);
+	private final AsynchronousSocketChannel channel;
+	private final ReadHandler readHandler = new ReadHandler();
+	private final WriteHandler writeHandler = new WriteHandler();
+	private final Runnable readResumer = new Runnable() {
+		@Override
+		public void run() {
+			if (closed.get()) {
+				decoder.release();
+			} else {
+				read();
+			}
+		}
+	};
+	private SocketAddress remoteAddress;
+
+	public ISO8583AsyncSession(AsynchronousSocketChannel channel, ExecutorService threadPool,
+			ISO8583FlowControl flowControl, ISO8583TimerWheel timerWheel, InboundProcessorParams params,
+			ISO8583FrameCodec codec, int maxMessageLength, ISO8583BufferPool bufferPool) {
+		super(threadPool, flowControl, timerWheel, params, codec, maxMessageLength, bufferPool);
+		this.channel = channel;
+		try {
+			this.remoteAddress = channel.getRemoteAddress();
+		} catch (IOException e) {
+			log.warn("Couldn't get the remote address of the connection", e);
+		}
+	}
+
+	/**
+	 * start reading requests from the connection.
+	 */
+	public void start() {
+		startIdleTimer();
+		read();
+	}
+
+	private void read() {
+		channel.read(decoder.readBuffer(), null, readHandler);
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * close the connection. The outstanding read and write complete with a
+	 * failure and give their buffers back to the pool.
+	 */
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		reportInFlight();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Exception while closing socket", e);
+		}
+		releaseOutbound();
+	}
+
+	/**
+	 * start the write chain for the queued responses.
+	 */
+	@Override
+	protected void scheduleWrite() {
+		write();
+	}
+
+	private void write() {
+		if (closed.get()) {
+			releaseWriteBuffers();
+			releaseOutbound();
+			return;
+		}
+		if (fillWriteBuffers()) {
+			channel.write(writeBuffers, 0, writeCount, 0L, TimeUnit.MILLISECONDS, null, writeHandler);
+		}
+	}
+
+	private void failed(Throwable exc, String operation) {
+		if (!closed.get() && !(exc instanceof AsynchronousCloseException)) {
+			log.warn("Exception while " + operation + " connection from " + remoteAddress + ", closing it", exc);
+		}
+		close();
+	}
+
+	private class ReadHandler implements CompletionHandler<Integer, Void> {
+
+		@Override
+		public void completed(Integer numRead, Void attachment) {
+			if (!handleFrames()) {
+				decoder.release();
+				return;
+			}
+			if (numRead < 0) {
+				log.warn("Connection closed by client: " + remoteAddress);
+				decoder.release();
+				close();
+				return;
+			}
+			decoder.releaseIfEmpty();
+			if (closed.get()) {
+				decoder.release();
+			} else if (isReadPaused()) {
+				// the worker pool is saturated, the next read is issued once it drained
+				flowControl.whenResumed(readResumer);
+			} else {
+				read();
+			}
+		}
+
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			decoder.release();
+			ISO8583AsyncSession.this.failed(exc, "reading from");
+		}
+	}
+
+	private class WriteHandler implements CompletionHandler<Long, Void> {
+
+		@Override
+		public void completed(Long written, Void attachment) {
+			if (releaseWritten()) {
+				write();
+			} else if (closed.get()) {
+				releaseWriteBuffers();
+			} else {
+				// the socket took part of the data, write the rest
+				channel.write(writeBuffers, 0, writeCount, 0L, TimeUnit.MILLISECONDS, null, this);
+			}
+		}
+
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			releaseWriteBuffers();
+			ISO8583AsyncSession.this.failed(exc, "writing to");
+		}
+	}
+}
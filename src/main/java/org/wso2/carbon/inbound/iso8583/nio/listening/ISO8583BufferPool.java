@@ -0,0 +1,148 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Size classed pool of direct buffers used for the session I/O. Buffers are
+ * kept in a shared queue per size class, so the read and write path neither
+ * allocates nor copies through the temporary direct buffer the JDK uses for
+ * heap buffers. Response buffers are borrowed on the worker threads and given
+ * back on the event loop thread that wrote them, so the pool has no per
+ * thread cache. With debug logging enabled every borrowed buffer remembers
+ * where it was borrowed, and the buffers still out when the listener stops
+ * are reported as leaks.
+ */
+public class ISO8583BufferPool {
+	private static final Log log = LogFactory.getLog(ISO8583BufferPool.class);
+	private static final int MIN_SIZE_SHIFT = 8;
+	private static final int SIZE_CLASSES = 9;
+	private static final int MAX_POOLED_SIZE = 1 << (MIN_SIZE_SHIFT + SIZE_CLASSES - 1);
+	private static final int SHARED_CACHE_SIZE = 256;
+
+	private final Queue<ByteBuffer>[] shared;
+	private final AtomicInteger[] sharedCount;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong outstanding = new AtomicLong();
+	private final Map<ByteBuffer, Throwable> borrowed;
+
+	@SuppressWarnings("unchecked")
+	public ISO8583BufferPool() {
+		shared = new Queue[SIZE_CLASSES];
+		sharedCount = new AtomicInteger[SIZE_CLASSES];
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedCount[i] = new AtomicInteger();
+		}
+		if (log.isDebugEnabled()) {
+			borrowed = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+		} else {
+			borrowed = null;
+		}
+	}
+
+	/**
+	 * borrow a cleared buffer with at least the given capacity.
+	 *
+	 * @param capacity
+	 *            the number of bytes needed
+	 * @return a direct buffer, to be given back with {@link #release}
+	 */
+	public ByteBuffer acquire(int capacity) {
+		ByteBuffer buffer = null;
+		int sizeClass = sizeClass(capacity);
+		if (sizeClass >= 0) {
+			buffer = shared[sizeClass].poll();
+			if (buffer != null) {
+				sharedCount[sizeClass].decrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			misses.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(sizeClass >= 0 ? 1 << (sizeClass + MIN_SIZE_SHIFT) : capacity);
+		} else {
+			hits.incrementAndGet();
+			buffer.clear();
+		}
+		outstanding.incrementAndGet();
+		if (borrowed != null) {
+			borrowed.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes borrowed here"));
+		}
+		return buffer;
+	}
+
+	/**
+	 * give a borrowed buffer back to the pool. The buffer must not be used
+	 * afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (borrowed != null && borrowed.remove(buffer) == null) {
+			log.warn("Buffer of " + buffer.capacity() + " bytes released twice or not borrowed from this pool",
+					new Throwable());
+			return;
+		}
+		outstanding.decrementAndGet();
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass < 0 || buffer.capacity() != 1 << (sizeClass + MIN_SIZE_SHIFT)) {
+			return;
+		}
+		if (sharedCount[sizeClass].incrementAndGet() <= SHARED_CACHE_SIZE) {
+			shared[sizeClass].add(buffer);
+		} else {
+			sharedCount[sizeClass].decrementAndGet();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of buffers borrowed and not released yet.
+	 */
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * log the pool metrics, and with debug logging the buffers that were
+	 * never released.
+	 */
+	public void report() {
+		log.info("Buffer pool hits: " + hits.get() + ", misses: " + misses.get() + ", outstanding: "
+				+ outstanding.get());
+		if (borrowed != null) {
+			List<Throwable> leaks;
+			synchronized (borrowed) {
+				leaks = new ArrayList<Throwable>(borrowed.values());
+			}
+			for (Throwable leak : leaks) {
+				log.debug("Buffer not released to the pool", leak);
+			}
+		}
+	}
+
+	private static int sizeClass(int capacity) {
+		if (capacity > MAX_POOLED_SIZE) {
+			return -1;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+		return Math.max(shift - MIN_SIZE_SHIFT, 0);
+	}
+}
@@ -0,0 +1,229 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Selector loop that owns a set of client sessions. The listener runs either
+ * one loop that also accepts connections, or an acceptor that spreads the
+ * accepted channels over several loops running on their own threads.
+ */
+public class ISO8583EventLoop implements Runnable {
+	private static final Log log = LogFactory.getLog(ISO8583EventLoop.class);
+	private final String name;
+	private final ISO8583MessageConnection connection;
+	private final Selector selector;
+	private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private final Queue<ISO8583Session> pendingWrites = new ConcurrentLinkedQueue<ISO8583Session>();
+	private final Queue<ISO8583Session> pendingResumes = new ConcurrentLinkedQueue<ISO8583Session>();
+	private final Queue<ISO8583Session> pendingCloses = new ConcurrentLinkedQueue<ISO8583Session>();
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	private volatile boolean running = true;
+
+	public ISO8583EventLoop(String name, ISO8583MessageConnection connection) throws IOException {
+		this.name = name;
+		this.connection = connection;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * accept connections of the server channel on this loop.
+	 */
+	public void registerAcceptor(ServerSocketChannel serverChannel) throws ClosedChannelException {
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * hand an accepted channel over to this loop. Called from the acceptor
+	 * thread, the channel is registered by the loop thread itself.
+	 */
+	public void register(SocketChannel channel) {
+		sessionCount.incrementAndGet();
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the number of sessions served by this loop.
+	 */
+	public int getSessionCount() {
+		return sessionCount.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * ask the loop thread to flush the responses queued on a session.
+	 */
+	void scheduleWrite(ISO8583Session session) {
+		pendingWrites.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * ask the loop thread to read again from a session paused by the flow
+	 * control.
+	 */
+	void scheduleResume(ISO8583Session session) {
+		pendingResumes.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * ask the loop thread to close a session, used for the idle timeout.
+	 */
+	void scheduleClose(ISO8583Session session) {
+		pendingCloses.add(session);
+		selector.wakeup();
+	}
+
+	void sessionClosed() {
+		sessionCount.decrementAndGet();
+	}
+
+	public void run() {
+		log.info("ISO8583 event loop " + name + " started");
+		try {
+			while (running && selector.isOpen()) {
+				log.trace("Waiting for event...");
+				selector.select();
+				registerPendingChannels();
+				flushPendingWrites();
+				resumePendingReads();
+				closePendingSessions();
+				log.trace("Procces event...");
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext() && running) {
+					SelectionKey key = keys.next();
+					// this is necessary to prevent the same key from coming up
+					// again the next time around.
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							SocketChannel channel = connection.accept((ServerSocketChannel) key.channel());
+							if (channel != null) {
+								sessionCount.incrementAndGet();
+								registerChannel(channel);
+							}
+						} catch (IOException e) {
+							// a failed accept must not take the live sessions down with the loop
+							log.warn("Couldn't accept a connection on event loop " + name, e);
+						}
+						continue;
+					}
+					ISO8583Session session = (ISO8583Session) key.attachment();
+					try {
+						if (key.isReadable()) {
+							session.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.write();
+						}
+					} catch (IOException e) {
+						log.warn("Exception on connection from " + session.getRemoteAddress() + ", closing it", e);
+						session.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.error("ISO8583 event loop " + name + " failed", e);
+		} finally {
+			closeSessions();
+		}
+		log.info("ISO8583 event loop " + name + " stopped");
+	}
+
+	/**
+	 * stop the loop, its sessions are closed by the loop thread on the way
+	 * out.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null) {
+			registerChannel(channel);
+		}
+	}
+
+	private void flushPendingWrites() {
+		ISO8583Session session;
+		while ((session = pendingWrites.poll()) != null) {
+			try {
+				session.write();
+			} catch (IOException e) {
+				log.warn("Exception on connection from " + session.getRemoteAddress() + ", closing it", e);
+				session.close();
+			}
+		}
+	}
+
+	private void resumePendingReads() {
+		ISO8583Session session;
+		while ((session = pendingResumes.poll()) != null) {
+			session.resumeReading();
+		}
+	}
+
+	private void closePendingSessions() {
+		ISO8583Session session;
+		while ((session = pendingCloses.poll()) != null) {
+			session.close();
+		}
+	}
+
+	private void registerChannel(SocketChannel channel) {
+		try {
+			// write interest is only registered while a session has pending responses
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			ISO8583Session session = connection.createSession(channel, this);
+			session.setSelectionKey(key);
+			key.attach(session);
+		} catch (IOException e) {
+			log.warn("Couldn't register connection on event loop " + name, e);
+			sessionCount.decrementAndGet();
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				log.warn("Exception while closing socket", e1);
+			}
+		}
+	}
+
+	private void closeSessions() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof ISO8583Session) {
+					((ISO8583Session) key.attachment()).close();
+				}
+				key.cancel();
+			}
+			SocketChannel channel;
+			while ((channel = pendingChannels.poll()) != null) {
+				channel.close();
+			}
+			selector.close();
+		} catch (Exception ex) {
+			log.error("Exception while closing selector", ex);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+
+/**
+ * Accumulating decoder for the length prefixed frames received on a session.
+ * Partial headers and bodies are kept between selector wakeups and every
+ * complete frame in the buffer is handed out, so split and coalesced TCP
+ * segments are handled without dropping data. The buffer is borrowed from
+ * the listener's buffer pool while a read is in progress.
+ */
+public class ISO8583FrameDecoder {
+	private static final int INITIAL_CAPACITY = 2048;
+
+	private final ISO8583FrameCodec codec;
+	private final int prefixLength;
+	private final int maxFrameLength;
+	private final ISO8583BufferPool bufferPool;
+	private ByteBuffer buffer;
+	private int readIndex;
+	private int frameLength = -1;
+
+	public ISO8583FrameDecoder(ISO8583FrameCodec codec, int maxFrameLength, ISO8583BufferPool bufferPool) {
+		this.codec = codec;
+		this.prefixLength = codec.getPrefixLength();
+		this.maxFrameLength = maxFrameLength;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * read the available bytes from the channel into the session buffer.
+	 *
+	 * @param channel
+	 *            the channel to read from
+	 * @return the number of bytes read, or -1 if the peer closed the channel
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		return channel.read(readBuffer());
+	}
+
+	/**
+	 * get the session buffer with room for the next read. The bytes read into
+	 * it are picked up by {@link #nextFrame()}.
+	 */
+	public ByteBuffer readBuffer() {
+		makeRoom();
+		return buffer;
+	}
+
+	/**
+	 * get the next complete frame body from the buffer.
+	 *
+	 * @return the frame body without its header, or null if more bytes are
+	 *         needed
+	 * @throws ProtocolException
+	 *             if the frame header is not a valid length or exceeds the
+	 *             maximum message length
+	 */
+	public byte[] nextFrame() throws ProtocolException {
+		if (buffer == null) {
+			return null;
+		}
+		int available = buffer.position() - readIndex;
+		if (frameLength < 0) {
+			if (available < prefixLength) {
+				return null;
+			}
+			int length = codec.decodeLength(buffer, readIndex);
+			if (length > maxFrameLength) {
+				throw new ProtocolException("Message length " + length + " exceeds the maximum of " + maxFrameLength);
+			}
+			frameLength = length;
+		}
+		if (available < prefixLength + frameLength) {
+			return null;
+		}
+		byte[] frame = new byte[frameLength];
+		int position = buffer.position();
+		buffer.position(readIndex + prefixLength);
+		buffer.get(frame);
+		buffer.position(position);
+		readIndex += prefixLength + frameLength;
+		frameLength = -1;
+		return frame;
+	}
+
+	/**
+	 * reclaim the space of consumed frames and grow the buffer when the
+	 * pending frame does not fit.
+	 */
+	private void makeRoom() {
+		if (buffer == null) {
+			buffer = bufferPool.acquire(INITIAL_CAPACITY);
+			readIndex = 0;
+		} else if (readIndex == buffer.position()) {
+			buffer.clear();
+			readIndex = 0;
+		}
+		int required = frameLength < 0 ? prefixLength : prefixLength + frameLength;
+		if (buffer.capacity() < required) {
+			ByteBuffer larger = bufferPool.acquire(Math.max(required, buffer.capacity() * 2));
+			buffer.flip();
+			buffer.position(readIndex);
+			larger.put(buffer);
+			bufferPool.release(buffer);
+			buffer = larger;
+			readIndex = 0;
+		} else if (readIndex > 0 && buffer.remaining() < required - (buffer.position() - readIndex)) {
+			buffer.flip();
+			buffer.position(readIndex);
+			buffer.compact();
+			readIndex = 0;
+		}
+	}
+
+	/**
+	 * give the buffer back to the pool when it holds no partial frame, so idle
+	 * connections do not keep a buffer.
+	 */
+	public void releaseIfEmpty() {
+		if (buffer != null && readIndex == buffer.position()) {
+			release();
+		}
+	}
+
+	/**
+	 * give the buffer back to the pool, dropping any partial frame.
+	 */
+	public void release() {
+		if (buffer != null) {
+			bufferPool.release(buffer);
+			buffer = null;
+			readIndex = 0;
+			frameLength = -1;
+		}
+	}
+}
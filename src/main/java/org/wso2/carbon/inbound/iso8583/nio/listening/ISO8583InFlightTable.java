@@ -0,0 +1,355 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.inbound.InboundProcessorParams;
+import org.jpos.iso.ISOBasePackager;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583PackagerSelector;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583MessageReader;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583MessageView;
+
+/**
+ * Requests of a session waiting for their response, keyed by the values of
+ * the correlation fields (for example 11 STAN, 37 RRN and 41 terminal id).
+ * Every response is matched to the request it answers, so a host pipelining
+ * many requests on one connection can tell when a response has no request in
+ * flight or comes after the correlation timeout, and the latency of every
+ * transaction is measured. The table is an open addressing hash table on the
+ * 64 bit hash of the key, kept in parallel arrays so an entry allocates
+ * nothing but its key. It is guarded by its monitor, the lookups under it are
+ * short and the keys are built outside of it.
+ */
+public class ISO8583InFlightTable {
+	private static final Log log = LogFactory.getLog(ISO8583InFlightTable.class);
+	private static final int INITIAL_CAPACITY = 64;
+	private static final char KEY_SEPARATOR = '|';
+
+	private final int[] fieldIds;
+	private final long timeoutNanos;
+	private final ISO8583PackagerSelector packagerSelector;
+	private long[] hashes;
+	private String[] keys;
+	private long[] started;
+	private int size;
+	private long matched;
+	private long orphaned;
+	private long late;
+	private long expired;
+	private long totalLatencyNanos;
+	private long maxLatencyNanos;
+
+	private ISO8583InFlightTable(int[] fieldIds, long timeoutMillis, ISO8583PackagerSelector packagerSelector) {
+		this.fieldIds = fieldIds;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.packagerSelector = packagerSelector;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * create the in-flight table of a session.
+	 *
+	 * @return the table, or null if no correlation fields are configured
+	 * @throws NumberFormatException
+	 *             if a field number or the timeout is not a number
+	 */
+	public static ISO8583InFlightTable create(InboundProcessorParams params) {
+		String fields = params.getProperties().getProperty(ISO8583Constant.INBOUND_CORRELATION_FIELDS);
+		if (fields == null || fields.trim().isEmpty()) {
+			return null;
+		}
+		String[] ids = fields.split(",");
+		int[] fieldIds = new int[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			fieldIds[i] = Integer.parseInt(ids[i].trim());
+		}
+		long timeout = Long.parseLong(params.getProperties().getProperty(ISO8583Constant.INBOUND_CORRELATION_TIMEOUT,
+				ISO8583Constant.CORRELATION_TIMEOUT));
+		return new ISO8583InFlightTable(fieldIds, timeout, ISO8583PackagerSelector.getSelector(params));
+	}
+
+	/**
+	 * record a request as waiting for its response.
+	 *
+	 * @param message
+	 *            the packed request
+	 * @param receivedNanos
+	 *            the {@link System#nanoTime()} the request was read at
+	 * @param remoteAddress
+	 *            the client of the session, for the log
+	 */
+	public void request(byte[] message, long receivedNanos, SocketAddress remoteAddress) {
+		String key = getKey(message);
+		if (key == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Request from " + remoteAddress + " has none of the correlation fields, not tracking it");
+			}
+			return;
+		}
+		long hash = hash(key);
+		synchronized (this) {
+			int slot = find(hash, key);
+			if (slot >= 0) {
+				log.warn("Duplicate request " + key + " from " + remoteAddress + " while the previous one is in flight");
+				started[slot] = receivedNanos;
+				return;
+			}
+			if (size + 1 > keys.length / 2) {
+				expire(System.nanoTime(), remoteAddress);
+				if (size + 1 > keys.length / 2) {
+					rehash(keys.length * 2);
+				}
+			}
+			insert(hash, key, receivedNanos);
+			size++;
+		}
+	}
+
+	/**
+	 * match a response to the request it answers.
+	 *
+	 * @param message
+	 *            the packed response
+	 * @param remoteAddress
+	 *            the client of the session, for the log
+	 * @return the latency of the transaction in nanoseconds, or -1 if the
+	 *         response has no request in flight
+	 */
+	public long response(byte[] message, SocketAddress remoteAddress) {
+		return response(getKey(message), remoteAddress);
+	}
+
+	/**
+	 * match a response to the request it answers, reading the correlation
+	 * fields from the message the response was packed from.
+	 *
+	 * @param message
+	 *            the response message
+	 * @param remoteAddress
+	 *            the client of the session, for the log
+	 * @return the latency of the transaction in nanoseconds, or -1 if the
+	 *         response has no request in flight
+	 */
+	public long response(ISOMsg message, SocketAddress remoteAddress) {
+		return response(getKey(message), remoteAddress);
+	}
+
+	private long response(String key, SocketAddress remoteAddress) {
+		long latency = -1;
+		if (key != null) {
+			long hash = hash(key);
+			long now = System.nanoTime();
+			synchronized (this) {
+				int slot = find(hash, key);
+				if (slot >= 0) {
+					latency = now - started[slot];
+					remove(slot);
+					matched++;
+					totalLatencyNanos += latency;
+					maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+					if (latency > timeoutNanos) {
+						late++;
+					}
+				} else {
+					orphaned++;
+				}
+			}
+		} else {
+			synchronized (this) {
+				orphaned++;
+			}
+		}
+		if (latency < 0) {
+			log.warn("Orphan response " + (key != null ? key : "without correlation fields") + " to " + remoteAddress
+					+ ", no request in flight");
+		} else if (latency > timeoutNanos) {
+			log.warn("Late response " + key + " to " + remoteAddress + " after "
+					+ TimeUnit.NANOSECONDS.toMillis(latency) + " ms");
+		} else if (log.isDebugEnabled()) {
+			log.debug("Response " + key + " to " + remoteAddress + " after "
+					+ TimeUnit.NANOSECONDS.toMicros(latency) + " us");
+		}
+		return latency;
+	}
+
+	/**
+	 * @return the number of requests waiting for their response.
+	 */
+	public synchronized int getInFlight() {
+		return size;
+	}
+
+	public synchronized long getMatched() {
+		return matched;
+	}
+
+	public synchronized long getOrphaned() {
+		return orphaned;
+	}
+
+	public synchronized long getLate() {
+		return late;
+	}
+
+	/**
+	 * log the correlation metrics of a session being closed.
+	 */
+	public synchronized void report(SocketAddress remoteAddress) {
+		if (matched + orphaned + size + expired == 0) {
+			return;
+		}
+		long average = matched > 0 ? totalLatencyNanos / matched : 0;
+		log.info("Connection from " + remoteAddress + " matched " + matched + " responses (average "
+				+ TimeUnit.NANOSECONDS.toMicros(average) + " us, max " + TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos)
+				+ " us), late: " + late + ", orphan: " + orphaned + ", unanswered: " + (size + expired));
+	}
+
+	/**
+	 * build the correlation key of a packed message.
+	 *
+	 * @return the values of the correlation fields, or null if the message
+	 *         has none of them or can't be read
+	 */
+	private String getKey(byte[] message) {
+		try {
+			ISOBasePackager packager = packagerSelector.getPackager(packagerSelector.select(message));
+			ISO8583MessageView view = ISO8583MessageReader.getReader(packager).view(message);
+			if (view == null) {
+				ISOMsg isoMsg = new ISOMsg();
+				isoMsg.setPackager(packager);
+				isoMsg.unpack(message);
+				return getKey(isoMsg);
+			}
+			StringBuilder key = new StringBuilder();
+			boolean found = false;
+			for (int i = 0; i < fieldIds.length; i++) {
+				found |= appendValue(key, i, view.getString(fieldIds[i]));
+			}
+			return found ? key.toString() : null;
+		} catch (ISOException e) {
+			log.debug("Couldn't read the correlation fields", e);
+			return null;
+		}
+	}
+
+	/**
+	 * build the correlation key of an unpacked message.
+	 *
+	 * @return the values of the correlation fields, or null if the message
+	 *         has none of them
+	 */
+	private String getKey(ISOMsg message) {
+		StringBuilder key = new StringBuilder();
+		boolean found = false;
+		for (int i = 0; i < fieldIds.length; i++) {
+			found |= appendValue(key, i, message.getString(fieldIds[i]));
+		}
+		return found ? key.toString() : null;
+	}
+
+	private static boolean appendValue(StringBuilder key, int index, String value) {
+		if (index > 0) {
+			key.append(KEY_SEPARATOR);
+		}
+		if (value == null) {
+			return false;
+		}
+		key.append(value.trim());
+		return true;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the key, zero marks a free slot.
+	 */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash != 0 ? hash : 1;
+	}
+
+	private int find(long hash, String key) {
+		int mask = keys.length - 1;
+		for (int slot = (int) (hash ^ (hash >>> 32)) & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && keys[slot].equals(key)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(long hash, String key, long start) {
+		int mask = keys.length - 1;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (hashes[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		hashes[slot] = hash;
+		keys[slot] = key;
+		started[slot] = start;
+	}
+
+	/**
+	 * free a slot, moving the entries probed past it back so lookups don't
+	 * stop at the hole.
+	 */
+	private void remove(int slot) {
+		int mask = keys.length - 1;
+		int hole = slot;
+		for (int next = (hole + 1) & mask; hashes[next] != 0; next = (next + 1) & mask) {
+			int home = (int) (hashes[next] ^ (hashes[next] >>> 32)) & mask;
+			// move the entry if its home slot is not between the hole and its slot
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				hashes[hole] = hashes[next];
+				keys[hole] = keys[next];
+				started[hole] = started[next];
+				hole = next;
+			}
+		}
+		hashes[hole] = 0;
+		keys[hole] = null;
+		size--;
+	}
+
+	/**
+	 * drop the requests that are in flight for longer than the correlation
+	 * timeout, their responses are reported as orphans if they still come.
+	 */
+	private void expire(long now, SocketAddress remoteAddress) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			while (hashes[slot] != 0 && now - started[slot] > timeoutNanos) {
+				if (log.isDebugEnabled()) {
+					log.debug("No response to " + keys[slot] + " from " + remoteAddress + " within the correlation timeout");
+				}
+				expired++;
+				// the entry moved into the slot by the removal is checked too
+				remove(slot);
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldHashes = hashes;
+		String[] oldKeys = keys;
+		long[] oldStarted = started;
+		allocate(capacity);
+		for (int i = 0; i < oldHashes.length; i++) {
+			if (oldHashes[i] != 0) {
+				insert(oldHashes[i], oldKeys[i], oldStarted[i]);
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		hashes = new long[capacity];
+		keys = new String[capacity];
+		started = new long[capacity];
+	}
+}
@@ -2,175 +2,239 @@ package org.wso2.carbon.inbound.iso8583.nio.listening;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.AcceptPendingException;
+import java.net.SocketAddress;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
 import java.util.Properties;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.SynapseException;
 import org.apache.synapse.inbound.InboundProcessorParams;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodecFactory;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583AdaptiveExecutor;
 import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583FlowControl;
 
+/**
+ * NIO.2 listener. Accepts, reads and writes are completion handlers run on a
+ * small channel group, the requests are injected on the worker pool.
+ */
 public class ISO8583MessageAsyncConnection extends Thread {
 	private static final Log log = LogFactory.getLog(ISO8583MessageAsyncConnection.class);
-	private static final long READ_MESSAGE_WAIT_TIME = 0;
+	private static final long MIN_ACCEPT_RETRY_DELAY = 100;
+	private static final long MAX_ACCEPT_RETRY_DELAY = 5000;
+	private static final long ACCEPT_WARNING_INTERVAL = 10000;
 	private AsynchronousChannelGroup asyncChannelGroup;
 	private AsynchronousServerSocketChannel asyncServerSocketChannel;
 	private InetSocketAddress listenAddress;
 	private ExecutorService threadPool;
+	private ISO8583FlowControl flowControl;
+	private ISO8583TimerWheel timerWheel;
+	private volatile ISO8583TimerWheel retryTimer;
 	private InboundProcessorParams params;
-	private boolean isRunning;
+	private ISO8583FrameCodec codec;
+	private int maxMessageLength;
+	private int ioThreads;
+	private Set<String> whiteList;
+	private final ISO8583BufferPool bufferPool = new ISO8583BufferPool();
 
 	public ISO8583MessageAsyncConnection(int port, InboundProcessorParams params) {
-		log.debug("new ISO8583MessageConnection created");
+		log.debug("new ISO8583MessageAsyncConnection created");
 		listenAddress = new InetSocketAddress(port);
 		this.params = params;
-		this.threadPool = getExecutorService();
-
-	}
-
-	/**
-	 * create the threadPool to handle the concurrent request.
-	 */
-	private ExecutorService getExecutorService() {
 		Properties properties = params.getProperties();
-		String coreThreads = properties.getProperty(ISO8583Constant.INBOUND_CORE_THREADS);
-		String maxThreads = properties.getProperty(ISO8583Constant.INBOUND_MAX_THREADS);
-		String threadSafeTime = properties.getProperty(ISO8583Constant.INBOUND_THREAD_ALIVE);
-		String queueLength = properties.getProperty(ISO8583Constant.INBOUND_THREAD_QLEN);
+		this.threadPool = ISO8583AdaptiveExecutor.createWorkerPool(params.getName(), properties);
+		this.flowControl = ISO8583FlowControl.create(properties, threadPool);
+		this.codec = ISO8583FrameCodecFactory.getCodec(properties, ISO8583Constant.FRAMING_ASCII);
+		if (codec == null) {
+			throw new SynapseException("The NIO listener requires length prefixed messages, framing cannot be "
+					+ ISO8583Constant.FRAMING_NONE);
+		}
 		try {
-			if ((!StringUtils.isEmpty(coreThreads)) && (!StringUtils.isEmpty(maxThreads))
-					&& (!StringUtils.isEmpty(threadSafeTime)) && (!StringUtils.isEmpty(queueLength))) {
-				BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(Integer.parseInt(queueLength));
-				threadPool = new ThreadPoolExecutor(Integer.parseInt(coreThreads), Integer.parseInt(maxThreads),
-						Integer.parseInt(threadSafeTime), TimeUnit.SECONDS, workQueue);
-			} else {
-				BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(
-						Integer.parseInt(ISO8583Constant.THREAD_QLEN));
-				threadPool = new ThreadPoolExecutor(Integer.parseInt(ISO8583Constant.CORE_THREADS),
-						Integer.parseInt(ISO8583Constant.MAX_THREADS), Integer.parseInt(ISO8583Constant.KEEP_ALIVE),
-						TimeUnit.SECONDS, workQueue);
-			}
+			this.timerWheel = AbstractISO8583Session.createTimerWheel(params);
+		} catch (NumberFormatException e) {
+			handleException("The idleTimeout or responseTimeout is not a parsable integer", e);
+		}
+		this.maxMessageLength = ISO8583FrameCodecFactory.getMaxMessageLength(properties, codec);
+		this.whiteList = ISO8583MessageConnection.getWhiteList(properties
+				.getProperty(ISO8583Constant.INBOUND_WHITE_LIST));
+		try {
+			this.ioThreads = Integer.parseInt(properties.getProperty(ISO8583Constant.INBOUND_IO_THREADS,
+					ISO8583Constant.IO_THREADS));
 		} catch (NumberFormatException e) {
-			handleException("One of the property or properties of thread specified is of an invalid type", e);
+			handleException("The ioThreads is not a parsable integer", e);
+		}
+		if (ioThreads <= 0) {
+			ioThreads = Runtime.getRuntime().availableProcessors();
 		}
-		return threadPool;
 	}
 
-	private void handleException(String string, NumberFormatException e) {
+	private void handleException(String string, Exception e) {
 		log.error(string, e);
-
+		throw new SynapseException(string);
 	}
 
 	public void run() {
-		this.isRunning = true;
-		while (isRunning) {
-			try {
-				startServer();
-			} catch (IOException e) {
-				log.error("Server IO Exception ", e);
+		try {
+			if (timerWheel != null) {
+				timerWheel.start();
+			}
+			startServer();
+			asyncChannelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (IOException e) {
+			log.error("Server IO Exception ", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (timerWheel != null) {
+				timerWheel.stop();
+			}
+			if (retryTimer != null) {
+				retryTimer.stop();
 			}
+			bufferPool.report();
 		}
 	}
+
 	// create server channel
 
 	private void startServer() throws IOException {
 		log.info("Strating server");
+		asyncChannelGroup = AsynchronousChannelGroup.withFixedThreadPool(ioThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, getName() + "-io-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		asyncServerSocketChannel = AsynchronousServerSocketChannel.open(asyncChannelGroup).bind(listenAddress);
+		// The accept method does not block it sets up the
+		// CompletionHandler callback and moves on.
+		asyncServerSocketChannel.accept(null, new Acceptor());
+		log.info("ISO8583 Server started..." + listenAddress.getPort());
+	}
 
-		try {
-			asyncChannelGroup = AsynchronousChannelGroup.withThreadPool(threadPool);
-			asyncServerSocketChannel = AsynchronousServerSocketChannel.open(asyncChannelGroup).bind(listenAddress);
+	/**
+	 * accepts the connections one after the other. A failed accept is tried
+	 * again after a delay that doubles while the failures last, so a lasting
+	 * failure such as running out of file descriptors neither spins the
+	 * channel group nor floods the log.
+	 */
+	private class Acceptor implements CompletionHandler<AsynchronousSocketChannel, Void> {
+		private long retryDelay = MIN_ACCEPT_RETRY_DELAY;
+		private long failures;
+		private long lastWarning;
+
+		@Override
+		public void completed(AsynchronousSocketChannel asyncSocketChannel, Void attachment) {
+			if (failures > 0) {
+				log.info("Accepting connections again after " + failures + " failed accepts");
+				failures = 0;
+				retryDelay = MIN_ACCEPT_RETRY_DELAY;
+			}
 			if (asyncServerSocketChannel.isOpen()) {
-				// The accept method does not block it sets up the
-				// CompletionHandler callback and moves on.
-				asyncServerSocketChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
-					@Override
-					public void completed(final AsynchronousSocketChannel asyncSocketChannel, Object attachment) {
-						if (asyncServerSocketChannel.isOpen()) {
-							asyncServerSocketChannel.accept(null, this);
-						}
-						handleAcceptConnection(asyncSocketChannel);
-					}
+				asyncServerSocketChannel.accept(null, this);
+			}
+			handleAcceptConnection(asyncSocketChannel);
+		}
 
-					@Override
-					public void failed(Throwable exc, Object attachment) {
-						if (asyncServerSocketChannel.isOpen()) {
-							asyncServerSocketChannel.accept(null, this);
-							System.out.println("***********" + exc + " statement=" + attachment);
-						}
-					}
-				});
-				log.info("Server " + getName() + " reading to accept first connection...");
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			if (!asyncServerSocketChannel.isOpen()) {
+				return;
+			}
+			failures++;
+			long now = System.currentTimeMillis();
+			if (now - lastWarning >= ACCEPT_WARNING_INTERVAL) {
+				lastWarning = now;
+				log.warn("Exception occurred while accept the connections, " + failures
+						+ " failed accepts so far, retrying in " + retryDelay + " ms", exc);
 			}
-		} catch (AcceptPendingException ex) {
-			ex.printStackTrace();
+			final Acceptor acceptor = this;
+			getRetryTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (asyncServerSocketChannel.isOpen()) {
+						asyncServerSocketChannel.accept(null, acceptor);
+					}
+				}
+			}, retryDelay);
+			retryDelay = Math.min(retryDelay * 2, MAX_ACCEPT_RETRY_DELAY);
 		}
 	}
 
-	public ISO8583Session getSession(SelectionKey key) {
-		ISO8583Session session = (ISO8583Session) key.attachment();
-		if (session == null) {
-
-			SocketChannel channel = (SocketChannel) key.channel();
-			session = new ISO8583Session(channel, threadPool, params);
-			key.attach(session);
+	/**
+	 * @return the timer of the listener, or a timer started for the accept
+	 *         retries if the sessions have no timeouts. Only called by the
+	 *         acceptor, which has one accept pending at a time.
+	 */
+	private ISO8583TimerWheel getRetryTimer() {
+		if (timerWheel != null) {
+			return timerWheel;
+		}
+		if (retryTimer == null) {
+			retryTimer = new ISO8583TimerWheel(getName() + "-accept-retry");
+			retryTimer.start();
 		}
-		return session;
+		return retryTimer;
 	}
 
 	private void handleAcceptConnection(AsynchronousSocketChannel asyncSocketChannel) {
-		log.info(">>handleAcceptConnection(), asyncSocketChannel=" + asyncSocketChannel);
-		ByteBuffer messageByteBuffer = ByteBuffer.allocate(77);
+		SocketAddress remoteAddr = null;
 		try {
-			// read a message from the client, timeout after 10 seconds
-			Future<Integer> futureReadResult = asyncSocketChannel.read(messageByteBuffer);
-			futureReadResult.get(READ_MESSAGE_WAIT_TIME, TimeUnit.SECONDS);
-
-			String clientMessage = new String(messageByteBuffer.array()).trim();
-
-			messageByteBuffer.clear();
-			messageByteBuffer.flip();
-
-			String responseString = "echo" + "_" + clientMessage;
-			messageByteBuffer = ByteBuffer.wrap((responseString.getBytes()));
-			Future<Integer> futureWriteResult = asyncSocketChannel.write(messageByteBuffer);
-			futureWriteResult.get(READ_MESSAGE_WAIT_TIME, TimeUnit.SECONDS);
-			if (messageByteBuffer.hasRemaining()) {
-				messageByteBuffer.compact();
-			} else {
-				messageByteBuffer.clear();
-			}
-		} catch (InterruptedException | ExecutionException | TimeoutException | CancellationException e) {
-			log.error(e);
-		} finally {
+			remoteAddr = asyncSocketChannel.getRemoteAddress();
+		} catch (IOException e) {
+			log.warn("Couldn't get the remote address of the connection", e);
+		}
+		if (remoteAddr == null || !ISO8583MessageConnection.checkWhitelist(whiteList, remoteAddr)) {
 			try {
 				asyncSocketChannel.close();
-			} catch (IOException ioEx) {
-				log.error(ioEx);
+			} catch (IOException e) {
+				log.warn("Exception while closing socket", e);
 			}
+			log.warn("Closed connection made from unknow host: " + remoteAddr);
+			return;
 		}
+		ISO8583AsyncSession session = new ISO8583AsyncSession(asyncSocketChannel, threadPool, flowControl,
+				timerWheel, params, codec, maxMessageLength, bufferPool);
+		log.info("Connection made from: " + session.getRemoteAddress());
+		session.start();
 	}
 
-	public void stopServer() throws IOException {
+	public void destroyConnection() {
 		log.info(">>stopingServer()...");
-		this.asyncServerSocketChannel.close();
-		this.asyncChannelGroup.shutdown();
+		try {
+			if (asyncServerSocketChannel != null) {
+				asyncServerSocketChannel.close();
+			}
+		} catch (IOException e) {
+			log.error("Exception while closing server socket", e);
+		}
+		if (asyncChannelGroup != null) {
+			try {
+				// closes every connection of the group
+				asyncChannelGroup.shutdownNow();
+			} catch (IOException e) {
+				log.error("Exception while closing the connections", e);
+			}
+		}
+		threadPool.shutdown();
+	}
+
+	public void stopServer() {
+		destroyConnection();
 	}
 
 }
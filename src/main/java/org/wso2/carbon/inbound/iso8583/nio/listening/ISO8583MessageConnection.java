@@ -4,107 +4,133 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.channels.SelectableChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.SynapseException;
 import org.apache.synapse.inbound.InboundProcessorParams;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodecFactory;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583AdaptiveExecutor;
 import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583FlowControl;
 
 public class ISO8583MessageConnection extends Thread {
 	private static final Log log = LogFactory.getLog(ISO8583MessageConnection.class);
-	private Selector selector;
+	private static final long EVENT_LOOP_STOP_TIMEOUT = 5000;
+	private static final long ACCEPT_RETRY_DELAY = 100;
+	private ISO8583EventLoop[] eventLoops;
+	private Thread[] eventLoopThreads;
+	private int nextLoop;
+	private int ioThreads;
+	private boolean leastLoaded;
 
 	private InetSocketAddress listenAddress;
 	private ExecutorService threadPool;
+	private ISO8583FlowControl flowControl;
+	private ISO8583TimerWheel timerWheel;
 	private InboundProcessorParams params;
 	private ServerSocketChannel serverChannel;
 	private Set<String> whiteList;
-	private boolean isRunning;
+	private volatile boolean isRunning;
+	private ISO8583FrameCodec codec;
+	private int maxMessageLength;
+	private final ISO8583BufferPool bufferPool = new ISO8583BufferPool();
 
 	public ISO8583MessageConnection(int port, InboundProcessorParams params) {
 		log.debug("new ISO8583MessageConnection created");
 		listenAddress = new InetSocketAddress(port);
 		this.params = params;
-		this.threadPool = getExecutorService();
-
-	}
-
-	/**
-	 * create the threadPool to handle the concurrent request.
-	 */
-	private ExecutorService getExecutorService() {
+		this.threadPool = ISO8583AdaptiveExecutor.createWorkerPool(params.getName(), params.getProperties());
+		this.whiteList = getWhiteList(params.getProperties().getProperty(ISO8583Constant.INBOUND_WHITE_LIST));
+		this.flowControl = ISO8583FlowControl.create(params.getProperties(), threadPool);
+		this.codec = ISO8583FrameCodecFactory.getCodec(params.getProperties(), ISO8583Constant.FRAMING_ASCII);
+		if (codec == null) {
+			throw new SynapseException("The NIO listener requires length prefixed messages, framing cannot be "
+					+ ISO8583Constant.FRAMING_NONE);
+		}
+		try {
+			this.timerWheel = AbstractISO8583Session.createTimerWheel(params);
+		} catch (NumberFormatException e) {
+			handleException("The idleTimeout or responseTimeout is not a parsable integer", e);
+		}
+		this.maxMessageLength = ISO8583FrameCodecFactory.getMaxMessageLength(params.getProperties(), codec);
 		Properties properties = params.getProperties();
-		String coreThreads = properties.getProperty(ISO8583Constant.INBOUND_CORE_THREADS);
-		String maxThreads = properties.getProperty(ISO8583Constant.INBOUND_MAX_THREADS);
-		String threadSafeTime = properties.getProperty(ISO8583Constant.INBOUND_THREAD_ALIVE);
-		String queueLength = properties.getProperty(ISO8583Constant.INBOUND_THREAD_QLEN);
-		String whiteListString = properties.getProperty(ISO8583Constant.INBOUND_WHITE_LIST);
 		try {
-			if ((!StringUtils.isEmpty(coreThreads)) && (!StringUtils.isEmpty(maxThreads))
-					&& (!StringUtils.isEmpty(threadSafeTime)) && (!StringUtils.isEmpty(queueLength))) {
-				BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(Integer.parseInt(queueLength));
-				threadPool = new ThreadPoolExecutor(Integer.parseInt(coreThreads), Integer.parseInt(maxThreads),
-						Integer.parseInt(threadSafeTime), TimeUnit.SECONDS, workQueue);
-			} else {
-				BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(
-						Integer.parseInt(ISO8583Constant.THREAD_QLEN));
-				threadPool = new ThreadPoolExecutor(Integer.parseInt(ISO8583Constant.CORE_THREADS),
-						Integer.parseInt(ISO8583Constant.MAX_THREADS), Integer.parseInt(ISO8583Constant.KEEP_ALIVE),
-						TimeUnit.SECONDS, workQueue);
-			}
-			if (!StringUtils.isEmpty(whiteListString)) {
-				setWhiteList(whiteListString);
-			}
+			this.ioThreads = Integer.parseInt(properties.getProperty(ISO8583Constant.INBOUND_IO_THREADS,
+					ISO8583Constant.IO_THREADS));
 		} catch (NumberFormatException e) {
-			handleException("One of the property or properties of thread specified is of an invalid type", e);
+			handleException("The ioThreads is not a parsable integer", e);
 		}
-		return threadPool;
+		this.leastLoaded = ISO8583Constant.IO_LOOP_LEAST_LOADED.equalsIgnoreCase(
+				properties.getProperty(ISO8583Constant.INBOUND_IO_LOOP_SELECTION));
+
 	}
 
-	private void setWhiteList(String whiteListString) {
+	/**
+	 * parse the semicolon separated hosts allowed to connect.
+	 *
+	 * @return the hosts, or null if every host may connect
+	 */
+	static Set<String> getWhiteList(String whiteListString) {
+		if (StringUtils.isEmpty(whiteListString)) {
+			return null;
+		}
+		Set<String> whiteList = new HashSet<String>();
 		StringTokenizer st = new StringTokenizer(whiteListString, ";");
 		while (st.hasMoreTokens()) {
-			String host = st.nextToken();
-			addToWhiteList(host);
+			whiteList.add(st.nextToken());
 		}
-
+		return whiteList;
 	}
 
-	private void addToWhiteList(String host) {
-		if (whiteList == null) {
-			whiteList = new HashSet<String>();
-		}
-		whiteList.add(host);
-	}
-
-	private void handleException(String string, NumberFormatException e) {
+	private void handleException(String string, Exception e) {
 		log.error(string, e);
-
+		throw new SynapseException(string);
 	}
 
 	public void run() {
 		this.isRunning = true;
+		if (timerWheel != null) {
+			timerWheel.start();
+		}
 		while (isRunning) {
 			try {
 				startServer();
 			} catch (IOException e) {
-				log.error("Server IO Exception ", e);
+				if (isRunning) {
+					log.error("Server IO Exception ", e);
+				}
+			}
+		}
+		awaitEventLoops();
+		if (timerWheel != null) {
+			timerWheel.stop();
+		}
+		bufferPool.report();
+	}
+
+	/**
+	 * wait for the selector threads to close their sessions.
+	 */
+	private void awaitEventLoops() {
+		if (eventLoopThreads == null) {
+			return;
+		}
+		for (Thread thread : eventLoopThreads) {
+			try {
+				thread.join(EVENT_LOOP_STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
 			}
 		}
 	}
@@ -113,77 +139,133 @@ public class ISO8583MessageConnection extends Thread {
 	private void startServer() throws IOException {
 		log.info("Strating server");
 
-		this.selector = Selector.open();
-
 		serverChannel = ServerSocketChannel.open();
-		serverChannel.configureBlocking(false);
 
 		// retrieve server socket and bind to port
 		serverChannel.socket().bind(listenAddress);
-		serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
-
 		log.info("ISO8583 Server started..." + listenAddress.getPort());
-		while (isRunning && this.selector.isOpen()) {
-			// wait for events
-			log.trace("Waiting for event...");
-			this.selector.select();
-			log.trace("Procces event...");
-			// work on selected keys
-			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
 
-			while (keys.hasNext() && isRunning) {
-
-				SelectionKey key = (SelectionKey) keys.next();
-
-				// this is necessary to prevent the same key from coming up
-				// again the next time around.
-				keys.remove();
-				if (!key.isValid()) {
-					continue;
-				}
-				if (key.isAcceptable()) {
-					this.accept(key);
-				} else if (key.isReadable()) {
-					ISO8583Session session = getSession(key);
-					session.read();
-				} else if (key.isWritable()) {
-					ISO8583Session session = getSession(key);
-					session.write();
+		try {
+			if (ioThreads <= 0) {
+				// accept and serve the connections on this thread
+				serverChannel.configureBlocking(false);
+				ISO8583EventLoop eventLoop = new ISO8583EventLoop(getName(), this);
+				eventLoops = new ISO8583EventLoop[] { eventLoop };
+				eventLoop.registerAcceptor(serverChannel);
+				eventLoop.run();
+			} else {
+				startEventLoops();
+				while (isRunning && serverChannel.isOpen()) {
+					try {
+						SocketChannel channel = accept(serverChannel);
+						if (channel != null) {
+							nextEventLoop().register(channel);
+						}
+					} catch (IOException e) {
+						if (!isRunning || !serverChannel.isOpen()) {
+							break;
+						}
+						// keep the socket and its backlog, and don't spin while the failure lasts
+						log.warn("Couldn't accept a connection on " + listenAddress, e);
+						pauseAccepting();
+					}
 				}
 			}
+		} finally {
+			serverChannel.close();
 		}
 
 		log.warn("Server stopped...");
 	}
 
-	public ISO8583Session getSession(SelectionKey key) {
-		ISO8583Session session = (ISO8583Session) key.attachment();
-		if (session == null) {
+	/**
+	 * wait a moment before accepting again, an interrupt stops the listener.
+	 */
+	private void pauseAccepting() {
+		try {
+			Thread.sleep(ACCEPT_RETRY_DELAY);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			isRunning = false;
+		}
+	}
+
+	/**
+	 * start the selector loops which serve the connections handed over by
+	 * the acceptor.
+	 */
+	private void startEventLoops() throws IOException {
+		if (eventLoops != null) {
+			return;
+		}
+		ISO8583EventLoop[] loops = new ISO8583EventLoop[ioThreads];
+		Thread[] threads = new Thread[ioThreads];
+		for (int i = 0; i < ioThreads; i++) {
+			loops[i] = new ISO8583EventLoop(getName() + "-io-" + i, this);
+			threads[i] = new Thread(loops[i], loops[i].getName());
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		eventLoops = loops;
+		eventLoopThreads = threads;
+	}
 
-			SocketChannel channel = (SocketChannel) key.channel();
-			session = new ISO8583Session(channel, threadPool, params);
-			key.attach(session);
+	/**
+	 * pick the loop for a new connection.
+	 */
+	private ISO8583EventLoop nextEventLoop() {
+		if (leastLoaded) {
+			ISO8583EventLoop selected = eventLoops[0];
+			for (int i = 1; i < eventLoops.length; i++) {
+				if (eventLoops[i].getSessionCount() < selected.getSessionCount()) {
+					selected = eventLoops[i];
+				}
+			}
+			return selected;
 		}
-		return session;
+		return eventLoops[(nextLoop++ & Integer.MAX_VALUE) % eventLoops.length];
 	}
 
-	// accept a connection made to this channel's socket
-	private void accept(SelectionKey key) throws IOException {
-		ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+	/**
+	 * create the session of a connection served by the given loop.
+	 */
+	ISO8583Session createSession(SocketChannel channel, ISO8583EventLoop eventLoop) {
+		return new ISO8583Session(channel, eventLoop, threadPool, flowControl, timerWheel, params, codec,
+				maxMessageLength, bufferPool);
+	}
+
+	/**
+	 * accept a connection made to this channel's socket.
+	 *
+	 * @return the accepted channel in non blocking mode, or null if it was
+	 *         rejected
+	 */
+	SocketChannel accept(ServerSocketChannel serverChannel) throws IOException {
 		SocketChannel channel = serverChannel.accept();
-		channel.configureBlocking(false);
+		if (channel == null) {
+			return null;
+		}
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
 		Socket socket = channel.socket();
 		SocketAddress remoteAddr = socket.getRemoteSocketAddress();
 		log.info("Connection made from: " + remoteAddr);
-		if (checkWhitelist(remoteAddr)) {
-			channel.register(this.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		}else{
-			channel.close();
-			log.warn("Closed connection made from unknow host: " + remoteAddr);
+		if (checkWhitelist(whiteList, remoteAddr)) {
+			return channel;
 		}
+		channel.close();
+		log.warn("Closed connection made from unknow host: " + remoteAddr);
+		return null;
 	}
 
-	private boolean checkWhitelist(SocketAddress remoteAddr) {
+	/**
+	 * @return whether the host of a connection may connect
+	 */
+	static boolean checkWhitelist(Set<String> whiteList, SocketAddress remoteAddr) {
 		if (whiteList == null) {
 			return true;
 		}
@@ -213,43 +295,10 @@ public class ISO8583MessageConnection extends Thread {
 			}
 		}
 
-		try {
-
-			Iterator<SelectionKey> keys = this.selector.keys().iterator();
-
-			while (keys.hasNext()) {
-
-				SelectionKey key = keys.next();
-
-				SelectableChannel channel = key.channel();
-
-				if (channel instanceof SocketChannel) {
-
-					SocketChannel socketChannel = (SocketChannel) channel;
-					Socket socket = socketChannel.socket();
-					String remoteHost = socket.getRemoteSocketAddress().toString();
-
-					log.info("closing socket {}" + remoteHost);
-
-					try {
-
-						socketChannel.close();
-
-					} catch (IOException e) {
-
-						log.warn("Exception while closing socket", e);
-					}
-
-					key.cancel();
-				}
+		if (eventLoops != null) {
+			for (ISO8583EventLoop eventLoop : eventLoops) {
+				eventLoop.shutdown();
 			}
-
-			log.info("closing selector");
-			selector.close();
-
-		} catch (Exception ex) {
-
-			log.error("Exception while closing selector", ex);
 		}
 		this.interrupt();
 	}
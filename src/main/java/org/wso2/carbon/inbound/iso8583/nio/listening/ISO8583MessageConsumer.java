@@ -7,6 +7,9 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.inbound.InboundProcessorParams;
 import org.wso2.carbon.inbound.endpoint.protocol.generic.GenericInboundListener;
 import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583InjectionEngine;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583PackagerSelector;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583ResponseRules;
 
 
 
@@ -15,6 +18,7 @@ public class ISO8583MessageConsumer extends GenericInboundListener {
 	public InboundProcessorParams params;
 	private int port;
 	private ISO8583MessageConnection messageConnection;
+	private ISO8583MessageAsyncConnection asyncConnection;
 
 	public ISO8583MessageConsumer(InboundProcessorParams params) {	
 		super(params);
@@ -26,18 +30,37 @@ public class ISO8583MessageConsumer extends GenericInboundListener {
 		} catch (NumberFormatException e) {
 			handleException("The String does not contain a parsable integer", e);
 		}
-		this.messageConnection = new ISO8583MessageConnection(port, params);
+		if (ISO8583Constant.IO_MODE_ASYNC.equalsIgnoreCase(properties.getProperty(ISO8583Constant.INBOUND_IO_MODE))) {
+			this.asyncConnection = new ISO8583MessageAsyncConnection(port, params);
+		} else {
+			this.messageConnection = new ISO8583MessageConnection(port, params);
+		}
 	}
 
 	@Override
 	public void init() {
-		messageConnection.start();
+		// parse the packager definitions before the first client connects
+		ISO8583PackagerSelector.getSelector(params);
+		// the injection engine takes the tenant of the deployment
+		ISO8583InjectionEngine.getEngine(params);
+		// pick up edits of config.properties when the endpoint is restarted
+		ISO8583ResponseRules.reload();
+		if (asyncConnection != null) {
+			asyncConnection.start();
+		} else {
+			messageConnection.start();
+		}
 
 	}
 
 	@Override
 	public void destroy() {
-		messageConnection.destroyConnection();;
+		if (asyncConnection != null) {
+			asyncConnection.destroyConnection();
+		} else {
+			messageConnection.destroyConnection();
+		}
+		ISO8583InjectionEngine.release(params);
 
 	}
 
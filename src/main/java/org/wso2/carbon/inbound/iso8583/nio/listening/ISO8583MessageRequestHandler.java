@@ -20,9 +20,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.SynapseException;
 import org.apache.synapse.inbound.InboundProcessorParams;
+import org.apache.axiom.om.OMElement;
 import org.jpos.iso.ISOException;
-import org.jpos.iso.ISOMsg;
-import org.jpos.iso.ISOPackager;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583PackagerSelector;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583MessageBuilder;
 
 /**
  * Class for handling the iso message request.
@@ -31,16 +33,29 @@ public class ISO8583MessageRequestHandler implements Runnable {
 	private static final Log log = LogFactory.getLog(ISO8583MessageRequestHandler.class);
 	//private TCPConnection connection;
 	private byte[] message;
-	private ISOPackager packager;
+	private ISO8583MessageBuilder messageBuilder;
 	private ISO8583MessageInject msgInject;
+	private String packagerKey;
+	private boolean json;
+	private ISO8583TimerWheel.Timeout responseTimeout;
 
 
-	public ISO8583MessageRequestHandler(byte[] message, ISO8583Session iso8583Session, InboundProcessorParams params) {
+	public ISO8583MessageRequestHandler(byte[] message, ISO8583MessageInject msgInject, InboundProcessorParams params,
+			ISO8583TimerWheel.Timeout responseTimeout) {
 		
 		//this.connection = connection;
 		this.message = message;
-		this.packager = ISO8583PackagerFactory.getPackager();
-		this.msgInject = new ISO8583MessageInject(params,iso8583Session);
+		String payloadMode = params.getProperties().getProperty(ISO8583Constant.INBOUND_PAYLOAD_MODE);
+		boolean deferred = ISO8583Constant.PAYLOAD_MODE_DEFERRED.equalsIgnoreCase(payloadMode);
+		this.json = ISO8583Constant.PAYLOAD_MODE_JSON.equalsIgnoreCase(payloadMode);
+		boolean headerView = Boolean.parseBoolean(params.getProperties().getProperty(
+				ISO8583Constant.INBOUND_HEADER_VIEW, ISO8583Constant.HEADER_VIEW));
+		ISO8583PackagerSelector packagerSelector = ISO8583PackagerSelector.getSelector(params);
+		this.packagerKey = message != null ? packagerSelector.select(message) : null;
+		this.messageBuilder = new ISO8583MessageBuilder(packagerSelector.getPackager(packagerKey), deferred,
+				headerView);
+		this.msgInject = msgInject;
+		this.responseTimeout = responseTimeout;
 	
 	}
 
@@ -51,7 +66,11 @@ public class ISO8583MessageRequestHandler implements Runnable {
 	public void handleIncommingMessage()  {
 		
 		if (message != null) {
-			
+			if (responseTimeout != null && responseTimeout.isExpired()) {
+				// the terminal has been answered with the timeout response already
+				log.debug("Request waited longer than the response timeout, not injecting it");
+				return;
+			}
 			
 			if (log.isDebugEnabled()) {
 				String messageStr = "";
@@ -62,11 +81,15 @@ public class ISO8583MessageRequestHandler implements Runnable {
 				}
 				System.out.println("Message: " + messageStr);
 			}
-			ISOMsg isoMessage = unpackRequest(message);
+			if (json) {
+				msgInject.injectJson(buildJsonRequest(message), getHeader(message), packagerKey, responseTimeout);
+				return;
+			}
+			OMElement payload = buildRequest(message);
 			if(log.isDebugEnabled()){
-				log.debug("Message: " + isoMessage);
+				log.debug("Message: " + payload);
 			}
-			msgInject.inject(isoMessage);
+			msgInject.inject(payload, getHeader(message), packagerKey, responseTimeout);
 		}
 	}
 
@@ -77,21 +100,51 @@ public class ISO8583MessageRequestHandler implements Runnable {
 	}
 
 	/**
-	 * unpack the string iso message to obtain its fields.
+	 * build the xml iso message straight from the packed request.
+	 *
+	 * @param message
+	 *            String ISOMessage
+	 */
+	private OMElement buildRequest(byte[] message) {
+		OMElement payload = null;
+		try {
+			payload = messageBuilder.build(message);
+		} catch (ISOException e) {
+			handleISOException(new String(message), e);
+		}
+		return payload;
+	}
+
+	/**
+	 * get the raw ISO header of the packed request.
+	 *
+	 * @param message
+	 *            String ISOMessage
+	 */
+	private byte[] getHeader(byte[] message) {
+		byte[] header = null;
+		try {
+			header = messageBuilder.getHeader(message);
+		} catch (ISOException e) {
+			handleISOException(new String(message), e);
+		}
+		return header;
+	}
+
+	/**
+	 * build the json iso message straight from the packed request.
 	 *
 	 * @param message
 	 *            String ISOMessage
 	 */
-	private ISOMsg unpackRequest(byte[] message) {
-		ISOMsg isoMsg = null;
+	private byte[] buildJsonRequest(byte[] message) {
+		byte[] payload = null;
 		try {
-			isoMsg = new ISOMsg();
-			isoMsg.setPackager(packager);
-			isoMsg.unpack(message);
+			payload = messageBuilder.buildJson(message);
 		} catch (ISOException e) {
 			handleISOException(new String(message), e);
 		}
-		return isoMsg;
+		return payload;
 	}
 
 	/**
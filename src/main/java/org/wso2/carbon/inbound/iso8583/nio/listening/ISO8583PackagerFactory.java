@@ -16,39 +16,23 @@
 
 package org.wso2.carbon.inbound.iso8583.nio.listening;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.apache.synapse.SynapseException;
-import org.jpos.iso.ISOException;
-import org.jpos.iso.ISOPackager;
-import org.jpos.iso.packager.GenericPackager;
-import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.apache.synapse.inbound.InboundProcessorParams;
+import org.jpos.iso.ISOBasePackager;
 
 /**
- * class for get ISOPackager.
+ * class for get ISOPackager, backed by the shared packager cache of the
+ * blocking listener.
  */
 public class ISO8583PackagerFactory {
-    private static final Log log = LogFactory.getLog(ISO8583PackagerFactory.class);
 
-    public static ISOPackager getPackager() {
-        ISOPackager packager = null;
-        try {
-            ClassLoader loader = Thread.currentThread().getContextClassLoader();
-            packager = new GenericPackager(loader.getResourceAsStream(ISO8583Constant.PACKAGER));
-        } catch (ISOException e) {
-            handleException("Error while get the ISOPackager", e);
-       }
-        return packager;
+    public static ISOBasePackager getPackager() {
+        return org.wso2.carbon.inbound.iso8583.listening.ISO8583PackagerFactory.getPackager();
     }
 
     /**
-     * handle the Exception
-     *
-     * @param msg error message
-     * @param e   an Exception
+     * get the packager with the header length of the inbound endpoint.
      */
-    private static void handleException(String msg, Exception e) {
-        log.error(msg, e);
-        throw new SynapseException(msg);
+    public static ISOBasePackager getPackager(InboundProcessorParams params) {
+        return org.wso2.carbon.inbound.iso8583.listening.ISO8583PackagerFactory.getPackagerWithParams(params);
     }
 }
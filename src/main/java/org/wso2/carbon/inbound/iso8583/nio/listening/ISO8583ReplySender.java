@@ -15,21 +15,24 @@
  */
 package org.wso2.carbon.inbound.iso8583.nio.listening;
 
-import java.util.Iterator;
-
-import javax.xml.namespace.QName;
-
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.MessageContext;
 import org.apache.synapse.SynapseException;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
 import org.apache.synapse.inbound.InboundResponseSender;
+import org.jpos.iso.ISOBasePackager;
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
-import org.jpos.iso.ISOPackager;
 import org.wso2.carbon.inbound.iso8583.listening.ISO8583Constant;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583PackagerSelector;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583DataSource;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583JsonPayload;
+import org.wso2.carbon.inbound.iso8583.message.ISO8583PayloadReader;
+
+import java.util.Base64;
 
 /**
  * class for handle iso8583 responses.
@@ -38,7 +41,7 @@ public class ISO8583ReplySender implements InboundResponseSender {
 
 	private static final Log log = LogFactory.getLog(ISO8583ReplySender.class.getName());
 
-	private ISO8583Session iso8583Session;
+	private AbstractISO8583Session iso8583Session;
 
 	/**
 	 * keep the socket connection to send the response back to client.
@@ -46,7 +49,7 @@ public class ISO8583ReplySender implements InboundResponseSender {
 	 * @param connection
 	 *            created socket connection.
 	 */
-	public ISO8583ReplySender(ISO8583Session iso8583Session) {
+	public ISO8583ReplySender(AbstractISO8583Session iso8583Session) {
 		this.iso8583Session = iso8583Session;
 	}
 
@@ -59,28 +62,54 @@ public class ISO8583ReplySender implements InboundResponseSender {
 
 	public void sendBack(MessageContext messageContext) {
 		log.debug("Message coming back");
+		ISO8583TimerWheel.Timeout timeout = (ISO8583TimerWheel.Timeout) messageContext
+				.getProperty(ISO8583Constant.ISO8583_RESPONSE_TIMEOUT);
+		if (timeout != null && !timeout.cancel()) {
+			log.warn("Dropping the response to " + iso8583Session.getRemoteAddress()
+					+ ", the request was answered with the timeout response already");
+			return;
+		}
 		try {
-			ISOPackager packager = ISO8583PackagerFactory.getPackager();
+			ISOBasePackager packager = ISO8583PackagerSelector.getSelector(iso8583Session.getParams())
+					.getPackager((String) messageContext.getProperty(ISO8583Constant.ISO8583_PACKAGER));
+			/* the header travels as raw bytes, the header of the payload is only a view of it */
+			byte[] header = (byte[]) messageContext.getProperty(ISO8583Constant.ISO8583_HEADER);
+			boolean payloadHeader = header == null && packager.getHeaderLength() > 0;
+			org.apache.axis2.context.MessageContext axis2MsgCtx = ((Axis2MessageContext) messageContext)
+					.getAxis2MessageContext();
+			if (ISO8583JsonPayload.hasPayload(axis2MsgCtx)) {
+				ISOMsg isoMsg = new ISOMsg();
+				isoMsg.setPackager(packager);
+				ISO8583JsonPayload.setFields(axis2MsgCtx, isoMsg, payloadHeader);
+				if (header != null) {
+					isoMsg.setHeader(header);
+				}
+				sendResponse(isoMsg, isoMsg.pack());
+				return;
+			}
 			SOAPEnvelope soapEnvelope = messageContext.getEnvelope();
 			OMElement getElements = soapEnvelope.getBody().getFirstElement();
+			/* a deferred payload nobody navigated into is sent back as it was received,
+				once expanded only the changed fields are packed into the received bytes */
+			ISO8583DataSource dataSource = ISO8583DataSource.getDataSource(getElements);
+			byte[] packedMessage = ISO8583DataSource.getPackedMessage(getElements);
+			if (packedMessage != null) {
+				sendResponse(packedMessage);
+				return;
+			}
 			ISOMsg isoMsg = new ISOMsg();
 			isoMsg.setPackager(packager);
-			Iterator<?> fields = getElements.getFirstChildWithName(new QName(ISO8583Constant.TAG_DATA))
-					.getChildrenWithLocalName(ISO8583Constant.TAG_FIELD);
-			while (fields.hasNext()) {
-				OMElement element = (OMElement) fields.next();
-				String getValue = element.getText();
-				try {
-					int fieldID = Integer
-							.parseInt(element.getAttribute(new QName(ISO8583Constant.TAG_ID)).getAttributeValue());
-					isoMsg.set(fieldID, getValue);
-				} catch (NumberFormatException e) {
-					log.warn("The fieldID does not contain a parsable integer" + e.getMessage(), e);
-				}
+			ISO8583PayloadReader.setFields(getElements, isoMsg);
+			if (payloadHeader) {
+				String payloadHeaderText = ISO8583PayloadReader.getHeader(getElements);
+				header = payloadHeaderText != null ? Base64.getDecoder().decode(payloadHeaderText) : null;
+			}
+			if (header != null) {
+				isoMsg.setHeader(header);
 			}
 
-			byte[] msg = isoMsg.pack();
-			sendResponse(msg);
+			byte[] msg = dataSource != null ? dataSource.pack(isoMsg) : isoMsg.pack();
+			sendResponse(isoMsg, msg);
 			log.debug("Done");
 		} catch (ISOException e) {
 			handleException("Couldn't packed ISO8583 Messages", e);
@@ -95,7 +124,19 @@ public class ISO8583ReplySender implements InboundResponseSender {
 	 *            String of packed ISO response.
 	 */
 	private void sendResponse(byte[] msg) {
-		this.iso8583Session.send(msg);
+		this.iso8583Session.reply(msg);
+	}
+
+	/**
+	 * writes the response packed from an ISOMsg to the client.
+	 *
+	 * @param isoMsg
+	 *            the ISO response.
+	 * @param msg
+	 *            the packed ISO response.
+	 */
+	private void sendResponse(ISOMsg isoMsg, byte[] msg) {
+		this.iso8583Session.reply(isoMsg, msg);
 	}
 
 	
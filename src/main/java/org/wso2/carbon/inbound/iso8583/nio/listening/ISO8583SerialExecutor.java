@@ -0,0 +1,89 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Serial execution lane of a session on the shared worker pool. The requests
+ * of one connection run one after the other in the order they were read,
+ * while the lanes of different connections run in parallel on the pool. A
+ * lane holds no thread while it is idle, and it gives its thread back to the
+ * pool after a batch of requests so busy connections don't starve the
+ * others.
+ */
+public class ISO8583SerialExecutor implements Executor {
+	private static final Log log = LogFactory.getLog(ISO8583SerialExecutor.class);
+	private static final int MAX_BATCH = 16;
+
+	private final Executor threadPool;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public ISO8583SerialExecutor(Executor threadPool) {
+		this.threadPool = threadPool;
+	}
+
+	/**
+	 * queue a task behind the earlier tasks of the lane. Called by the single
+	 * thread reading the session.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the lane was idle and the pool didn't take it, the task
+	 *             is not run
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				threadPool.execute(drainer);
+			} catch (RejectedExecutionException e) {
+				// the lane was idle, so the queue only holds this task
+				tasks.remove(task);
+				scheduled.set(false);
+				throw e;
+			}
+		}
+	}
+
+	private void drain() {
+		for (;;) {
+			Runnable task;
+			int count = 0;
+			while (count < MAX_BATCH && (task = tasks.poll()) != null) {
+				count++;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.error("Exception while handling a request", e);
+				}
+			}
+			if (count == MAX_BATCH && !tasks.isEmpty()) {
+				try {
+					// let the lanes of other connections run before the next batch
+					threadPool.execute(drainer);
+					return;
+				} catch (RejectedExecutionException e) {
+					continue;
+				}
+			}
+			scheduled.set(false);
+			// a task queued after the poll above may have seen the lane still scheduled
+			if (tasks.isEmpty() || !scheduled.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+}
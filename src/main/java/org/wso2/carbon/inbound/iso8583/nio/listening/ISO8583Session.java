@@ -3,147 +3,138 @@ package org.wso2.carbon.inbound.iso8583.nio.listening;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayDeque;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.inbound.InboundProcessorParams;
+import org.wso2.carbon.inbound.iso8583.framing.ISO8583FrameCodec;
+import org.wso2.carbon.inbound.iso8583.listening.ISO8583FlowControl;
 
-public class ISO8583Session {
+public class ISO8583Session extends AbstractISO8583Session {
 	private static final Log log = LogFactory.getLog(ISO8583Session.class);
 	private final SocketChannel channel;
-	private ExecutorService threadPool;
-	private InboundProcessorParams params;
-	private ArrayDeque<byte[]> messageQueue = new ArrayDeque<byte[]>();
+	private final ISO8583EventLoop eventLoop;
+	private SelectionKey selectionKey;
+	private final Runnable readResumer = new Runnable() {
+		@Override
+		public void run() {
+			eventLoop.scheduleResume(ISO8583Session.this);
+		}
+	};
 
-	public ISO8583Session(SocketChannel channel, ExecutorService threadPool, InboundProcessorParams params) {
-		super();
+	public ISO8583Session(SocketChannel channel, ISO8583EventLoop eventLoop, ExecutorService threadPool,
+			ISO8583FlowControl flowControl, ISO8583TimerWheel timerWheel, InboundProcessorParams params,
+			ISO8583FrameCodec codec, int maxMessageLength, ISO8583BufferPool bufferPool) {
+		super(threadPool, flowControl, timerWheel, params, codec, maxMessageLength, bufferPool);
 		this.channel = channel;
-		this.threadPool = threadPool;
-		this.params = params;
+		this.eventLoop = eventLoop;
+		startIdleTimer();
 	}
 
 	// read from the socket channel
 
 	public void read() throws IOException {
 		log.debug("Trying to read data from socket");
-		ByteBuffer headerbuffer = ByteBuffer.allocate(4);
-		int numRead = -1;
-		numRead = channel.read(headerbuffer);
-		int len = 0;
-		if (numRead == 4) {
-			byte[] header = new byte[numRead];
-			System.arraycopy(headerbuffer.array(), 0, header, 0, 4);
-			try {
-				len = this.parseHeader(header);
-			} catch (NumberFormatException e) {
-				log.error("The lengh of the message was not a number");
-				len = 100;
-			}
+		int numRead = decoder.readFrom(channel);
+		if (!handleFrames()) {
+			return;
 		}
-		ByteBuffer buffer = ByteBuffer.allocate(len);
-		numRead = -1;
-		numRead = channel.read(buffer);
-
-		if (numRead > 0) {
-
-			byte[] data = new byte[numRead];
-
-			System.arraycopy(buffer.array(), 0, data, 0, numRead);
-			if (log.isDebugEnabled()) {
-				log.debug("Got: " + new String(data));
-			}
-			if (numRead == len) {
-				handleClientRequest(data);
-			} else {
-				log.error("Data did not match header expected " + len + " bytes, got " + numRead);
-			}
-
+		if (numRead < 0) {
+			log.warn("Connection closed by client: " + getRemoteAddress());
+			close();
 		} else {
-
-			Socket socket = channel.socket();
-			SocketAddress remoteAddr = socket.getRemoteSocketAddress();
-			log.warn("Connection closed by client: " + remoteAddr);
-			channel.close();
-
+			decoder.releaseIfEmpty();
+			if (isReadPaused()) {
+				// the worker pool is saturated, leave the requests in the socket buffers
+				setInterest(SelectionKey.OP_READ, false);
+				flowControl.whenResumed(readResumer);
+			}
 		}
 	}
 
-	public void write() throws IOException {
-		if (!messageQueue.isEmpty()) {
-			byte[] message = messageQueue.pop();
-			sendResponse(message);
+	/**
+	 * read again once the worker pool drained. Called on the event loop
+	 * thread.
+	 */
+	void resumeReading() {
+		if (!closed.get()) {
+			setInterest(SelectionKey.OP_READ, true);
 		}
 	}
 
-	private int parseHeader(byte[] header) {
-		String hs = new String(header);
-		return Integer.parseInt(hs.trim());
-
-	}
-
-	private void handleClientRequest(byte[] message) {
-		try {
-			threadPool.submit(new ISO8583MessageRequestHandler(message, this, params));
-
-		} catch (RejectedExecutionException re) {
-
-			// If the pool is full complete the execution with the same thread
-			log.error("Worker pool has reached the maximum capacity.");
-		}
+	/**
+	 * close the idle connection on the event loop thread.
+	 */
+	@Override
+	protected void closeIdle() {
+		eventLoop.scheduleClose(this);
 	}
 
-	public void send(byte[] msg) {
-		messageQueue.add(msg);
+	@Override
+	public SocketAddress getRemoteAddress() {
+		Socket socket = channel.socket();
+		return socket.getRemoteSocketAddress();
 	}
 
 	/**
-	 * writes the packed iso message response to the client.
-	 *
-	 * @param responseMessage
-	 *            String of packed ISO response.
+	 * close the connection and release it from its event loop. Called on the
+	 * event loop thread.
 	 */
-	private void sendResponse(byte[] msg) {
-		if (log.isDebugEnabled()) {
-			log.debug("Sending" + msg);
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
 		}
-		msg = makeHeader(msg);
-		ByteBuffer buf = ByteBuffer.allocate(msg.length);
-		buf.clear();
-		buf.put(msg);
-
-		buf.flip();
+		reportInFlight();
 		try {
-			while (buf.hasRemaining()) {
-				log.debug(":");
-				channel.write(buf);
-			}
-			log.debug("done");
+			channel.close();
 		} catch (IOException e) {
-			log.error("Error while sending responce ", e);
+			log.warn("Exception while closing socket", e);
 		}
+		eventLoop.sessionClosed();
+		decoder.release();
+		releaseWriteBuffers();
+		releaseOutbound();
 	}
 
-	private byte[] makeHeader(byte[] data) {
-		int len = data.length;
-		String s = String.format("%04d", len);
-		// Integer.toString(len);
-		if (log.isDebugEnabled()) {
-			log.debug("Header: " + s);
+	/**
+	 * write the queued responses with one gathering write. Called on the
+	 * event loop thread, write interest stays registered only while the
+	 * socket cannot take all pending data.
+	 */
+	public void write() throws IOException {
+		while (fillWriteBuffers()) {
+			channel.write(writeBuffers, 0, writeCount);
+			if (!releaseWritten()) {
+				setInterest(SelectionKey.OP_WRITE, true);
+				return;
+			}
 		}
-		byte[] header = s.getBytes();
-		int hl = header.length;
-		byte buf[] = new byte[4 + len];
-
-		System.arraycopy(header, 0, buf, 0, hl);
+		setInterest(SelectionKey.OP_WRITE, false);
+	}
 
-		System.arraycopy(data, 0, buf, hl, len);
+	/**
+	 * the event loop is woken up to write the responses.
+	 */
+	@Override
+	protected void scheduleWrite() {
+		eventLoop.scheduleWrite(this);
+	}
 
-		return buf;
+	private void setInterest(int op, boolean enabled) {
+		if (selectionKey != null && selectionKey.isValid()) {
+			int ops = selectionKey.interestOps();
+			int newOps = enabled ? ops | op : ops & ~op;
+			if (newOps != ops) {
+				selectionKey.interestOps(newOps);
+			}
+		}
 	}
 
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
 }
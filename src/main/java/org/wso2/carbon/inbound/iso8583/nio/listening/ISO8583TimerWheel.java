@@ -0,0 +1,216 @@
+package org.wso2.carbon.inbound.iso8583.nio.listening;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hashed timing wheel holding the idle deadlines of the sessions and the
+ * response deadlines of their requests. One thread per listener advances the
+ * wheel a tick at a time and runs the timeouts of the bucket it reaches, so
+ * scheduling and cancelling a timeout is a queue offer and no timer holds a
+ * thread. Deadlines further away than one turn of the wheel wait for their
+ * remaining rounds in their bucket. Timeouts run on the wheel thread and must
+ * not block.
+ */
+public class ISO8583TimerWheel implements Runnable {
+	private static final Log log = LogFactory.getLog(ISO8583TimerWheel.class);
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 512;
+
+	private final String name;
+	private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+	private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime = System.nanoTime();
+	private volatile boolean running = true;
+	private Thread thread;
+	private long tick;
+
+	/**
+	 * Handle of a scheduled task. Exactly one of {@link #cancel()} and the
+	 * expiry wins.
+	 */
+	public final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private long remainingRounds;
+		private int bucket = -1;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * cancel the task if it has not run yet.
+		 *
+		 * @return false if the task expired already
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return state.get() == CANCELLED;
+			}
+			cancelledTimeouts.add(this);
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	public ISO8583TimerWheel(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * start the wheel thread.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * stop the wheel thread, pending timeouts never run.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * schedule a task on the wheel. Safe to call from any thread.
+	 *
+	 * @param task
+	 *            run on the wheel thread once the delay passed
+	 * @param delayMillis
+	 *            the delay, rounded up to the next tick
+	 * @return the handle to cancel the task with
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+		pendingTimeouts.add(timeout);
+		return timeout;
+	}
+
+	public void run() {
+		log.info("ISO8583 timer " + name + " started");
+		while (running) {
+			long deadline = waitForNextTick();
+			if (deadline < 0) {
+				break;
+			}
+			removeCancelled();
+			transferPending();
+			expire((int) (tick & (WHEEL_SIZE - 1)), deadline);
+			tick++;
+		}
+		log.info("ISO8583 timer " + name + " stopped");
+	}
+
+	/**
+	 * sleep until the end of the current tick.
+	 *
+	 * @return the time the tick ended, relative to the start of the wheel, or
+	 *         -1 if the wheel was stopped
+	 */
+	private long waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+		for (;;) {
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos <= 0) {
+				return deadline;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				if (!running) {
+					return -1;
+				}
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			if (timeout.bucket >= 0) {
+				unlink(timeout);
+			}
+		}
+	}
+
+	/**
+	 * move the timeouts scheduled since the last tick into their buckets.
+	 */
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pendingTimeouts.poll()) != null) {
+			if (timeout.state.get() != Timeout.PENDING) {
+				continue;
+			}
+			long ticks = Math.max((timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+			timeout.remainingRounds = (ticks - tick) / WHEEL_SIZE;
+			int bucket = (int) (ticks & (WHEEL_SIZE - 1));
+			timeout.bucket = bucket;
+			timeout.next = buckets[bucket];
+			if (buckets[bucket] != null) {
+				buckets[bucket].prev = timeout;
+			}
+			buckets[bucket] = timeout;
+		}
+	}
+
+	private void expire(int bucket, long deadline) {
+		Timeout timeout = buckets[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.remainingRounds > 0) {
+				timeout.remainingRounds--;
+			} else if (timeout.deadline <= deadline) {
+				unlink(timeout);
+				if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						log.error("Exception while running a timeout", e);
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.bucket = -1;
+		timeout.next = null;
+		timeout.prev = null;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.packager;
+
+import org.jpos.iso.ISOComponent;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOFieldPackager;
+
+import java.nio.charset.Charset;
+
+/**
+ * Base of the field codecs compiled from the ASCII field packagers of jPOS. A codec packs
+ * and unpacks its field with straight-line code instead of going through the padder,
+ * interpreter and prefixer objects of the jPOS packager, and produces the same bytes.
+ */
+abstract class AsciiFieldCodec extends ISOFieldPackager implements ISO8583FieldCodec {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    AsciiFieldCodec(int length, String description) {
+        super(length, description);
+    }
+
+    /**
+     * @return the value of the component as the jPOS string packagers see it
+     */
+    static String stringValue(ISOComponent c) throws ISOException {
+        Object value = c.getValue();
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, ISO_8859_1);
+        }
+        return (String) value;
+    }
+
+    /**
+     * write the characters of a value as ISO-8859-1 bytes.
+     */
+    static void putChars(String data, byte[] b, int offset) {
+        for (int i = 0; i < data.length(); i++) {
+            char ch = data.charAt(i);
+            b[offset + i] = ch <= 0xFF ? (byte) ch : (byte) '?';
+        }
+    }
+
+    /**
+     * read ISO-8859-1 characters, checking the message is long enough.
+     */
+    static String getChars(byte[] b, int offset, int length) throws ISOException {
+        checkAvailable(b, offset, length);
+        return new String(b, offset, length, ISO_8859_1);
+    }
+
+    static void checkAvailable(byte[] b, int offset, int length) throws ISOException {
+        if (offset + length > b.length) {
+            throw new ISOException("Required " + length + " but just got " + (b.length - offset) + " bytes");
+        }
+    }
+
+    static ISOException tooLong(int length, int maxLength) {
+        return new ISOException("Field length " + length + " too long. Max: " + maxLength);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.packager;
+
+import org.jpos.iso.ISOComponent;
+import org.jpos.iso.ISOException;
+
+/**
+ * Fixed length field padded to its length, compiled from {@code IFA_NUMERIC} (left padded
+ * with zeros) and {@code IF_CHAR} (right padded with spaces). Values longer than the field
+ * are rejected, or cut to the field length like the {@code RightTPadder} of {@code IF_CHAR}
+ * does when the jPOS packager accepts them.
+ */
+final class AsciiFixedCodec extends AsciiFieldCodec {
+    private final boolean leftPadded;
+    private final byte pad;
+    private final boolean truncate;
+
+    AsciiFixedCodec(int length, String description, boolean leftPadded, char pad, boolean truncate) {
+        super(length, description);
+        this.leftPadded = leftPadded;
+        this.pad = (byte) pad;
+        this.truncate = truncate;
+    }
+
+    @Override
+    public int getMaxPackedLength() {
+        return getLength();
+    }
+
+    @Override
+    public byte[] pack(ISOComponent c) throws ISOException {
+        String data = stringValue(c);
+        int length = getLength();
+        int dataLength = data.length();
+        if (dataLength > length) {
+            if (!truncate) {
+                throw tooLong(dataLength, length);
+            }
+            data = data.substring(0, length);
+            dataLength = length;
+        }
+        byte[] packed = new byte[length];
+        int padLength = length - dataLength;
+        if (leftPadded) {
+            for (int i = 0; i < padLength; i++) {
+                packed[i] = pad;
+            }
+            putChars(data, packed, padLength);
+        } else {
+            putChars(data, packed, 0);
+            for (int i = dataLength; i < length; i++) {
+                packed[i] = pad;
+            }
+        }
+        return packed;
+    }
+
+    @Override
+    public int getPackedLength(byte[] b, int offset) throws ISOException {
+        checkAvailable(b, offset, getLength());
+        return getLength();
+    }
+
+    @Override
+    public int unpack(ISOComponent c, byte[] b, int offset) throws ISOException {
+        int length = getLength();
+        c.setValue(getChars(b, offset, length));
+        return length;
+    }
+}
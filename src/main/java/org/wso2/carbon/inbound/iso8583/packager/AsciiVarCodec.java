@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.packager;
+
+import org.jpos.iso.ISOComponent;
+import org.jpos.iso.ISOException;
+
+/**
+ * Variable length field with an ASCII decimal length prefix, compiled from
+ * {@code IFA_LLCHAR}, {@code IFA_LLNUM}, {@code IFA_LLLCHAR} and {@code IFA_LLLNUM}.
+ */
+final class AsciiVarCodec extends AsciiFieldCodec {
+    private final int prefixLength;
+
+    AsciiVarCodec(int maxLength, String description, int prefixLength) {
+        super(maxLength, description);
+        this.prefixLength = prefixLength;
+    }
+
+    @Override
+    public int getMaxPackedLength() {
+        return prefixLength + getLength();
+    }
+
+    @Override
+    public byte[] pack(ISOComponent c) throws ISOException {
+        String data = stringValue(c);
+        int dataLength = data.length();
+        if (dataLength > getLength()) {
+            throw tooLong(dataLength, getLength());
+        }
+        byte[] packed = new byte[prefixLength + dataLength];
+        int length = dataLength;
+        for (int i = prefixLength - 1; i >= 0; i--) {
+            packed[i] = (byte) ('0' + length % 10);
+            length /= 10;
+        }
+        putChars(data, packed, prefixLength);
+        return packed;
+    }
+
+    @Override
+    public int getPackedLength(byte[] b, int offset) throws ISOException {
+        int length = decodeLength(b, offset);
+        checkAvailable(b, offset + prefixLength, length);
+        return prefixLength + length;
+    }
+
+    @Override
+    public int unpack(ISOComponent c, byte[] b, int offset) throws ISOException {
+        int length = decodeLength(b, offset);
+        c.setValue(getChars(b, offset + prefixLength, length));
+        return prefixLength + length;
+    }
+
+    private int decodeLength(byte[] b, int offset) throws ISOException {
+        checkAvailable(b, offset, prefixLength);
+        int length = 0;
+        for (int i = 0; i < prefixLength; i++) {
+            length = length * 10 + b[offset + i] - '0';
+        }
+        if (length < 0) {
+            throw new ISOException("Invalid length prefix " + getChars(b, offset, prefixLength));
+        } else if (length > getLength()) {
+            throw tooLong(length, getLength());
+        }
+        return length;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.packager;
+
+import org.jpos.iso.ISOException;
+
+/**
+ * A compiled field codec that can measure a packed field without decoding its value,
+ * so a message can be indexed and its fields decoded only when they are read.
+ */
+public interface ISO8583FieldCodec {
+
+    /**
+     * @param b      the packed message
+     * @param offset the offset of the field
+     * @return the number of bytes the field takes, including its length prefix
+     * @throws ISOException if the message is too short or the length prefix is invalid
+     */
+    int getPackedLength(byte[] b, int offset) throws ISOException;
+}
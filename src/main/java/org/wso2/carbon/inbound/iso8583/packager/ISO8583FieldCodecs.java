@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.inbound.iso8583.packager;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jpos.iso.IFA_LLCHAR;
+import org.jpos.iso.IFA_LLLCHAR;
+import org.jpos.iso.IFA_LLLNUM;
+import org.jpos.iso.IFA_LLNUM;
+import org.jpos.iso.IFA_NUMERIC;
+import org.jpos.iso.IF_CHAR;
+import org.jpos.iso.ISOBasePackager;
+import org.jpos.iso.ISOComponent;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOField;
+import org.jpos.iso.ISOFieldPackager;
+
+import java.util.Arrays;
+
+/**
+ * Compiles the field packagers of a parsed packager definition into specialized codecs.
+ * The ASCII field types of jposdef.xml are replaced with codecs that pack and unpack with
+ * straight-line code; other field types keep their jPOS packager.
+ * <p>
+ * Every compiled codec has to pass a conformance check before it is used: sample values of
+ * different lengths, longer than the field and not made of digits, are packed by the codec
+ * and by the jPOS packager. The bytes must be identical, both must unpack them to the same
+ * value and the codec must reject the values jPOS rejects. A codec that fails the check is
+ * logged and the jPOS packager is kept for that field.
+ */
+public class ISO8583FieldCodecs {
+    private static final Log log = LogFactory.getLog(ISO8583FieldCodecs.class);
+    private static final int MAX_FIELDS = 256;
+    private static final String SAMPLE = "0123456789";
+    private static final String TEXT = "Ab -/?9";
+
+    private ISO8583FieldCodecs() {
+    }
+
+    /**
+     * replace the field packagers of a packager with compiled codecs. Must be called before the
+     * packager is shared.
+     *
+     * @param packager the packager parsed from a definition
+     * @return the number of fields compiled
+     */
+    public static int compile(ISOBasePackager packager) {
+        ISOFieldPackager[] fields = getFieldPackagers(packager);
+        int compiled = 0;
+        for (int i = 0; i < fields.length; i++) {
+            ISOFieldPackager codec = compile(fields[i]);
+            if (codec != null && conforms(i, fields[i], codec)) {
+                packager.setFieldPackager(i, codec);
+                compiled++;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Compiled " + compiled + " of " + fields.length + " field packagers");
+        }
+        return compiled;
+    }
+
+    /**
+     * get the field packagers of a packager, indexed by field number.
+     */
+    public static ISOFieldPackager[] getFieldPackagers(ISOBasePackager packager) {
+        ISOFieldPackager[] fields = new ISOFieldPackager[MAX_FIELDS];
+        int count = 0;
+        try {
+            while (count < MAX_FIELDS) {
+                fields[count] = packager.getFieldPackager(count);
+                count++;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // reached the last field of the packager
+        }
+        return Arrays.copyOf(fields, count);
+    }
+
+    /**
+     * @return the codec of a field packager, or null if its type isn't compiled
+     */
+    private static ISOFieldPackager compile(ISOFieldPackager field) {
+        if (field == null) {
+            return null;
+        }
+        Class<?> type = field.getClass();
+        if (type == IFA_NUMERIC.class) {
+            return new AsciiFixedCodec(field.getLength(), field.getDescription(), true, '0', false);
+        } else if (type == IF_CHAR.class) {
+            return new AsciiFixedCodec(field.getLength(), field.getDescription(), false, ' ', truncates(field));
+        } else if (type == IFA_LLCHAR.class || type == IFA_LLNUM.class) {
+            return new AsciiVarCodec(field.getLength(), field.getDescription(), 2);
+        } else if (type == IFA_LLLCHAR.class || type == IFA_LLLNUM.class) {
+            return new AsciiVarCodec(field.getLength(), field.getDescription(), 3);
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the jPOS packager cuts a value longer than the field instead of
+     * rejecting it, which depends on the jPOS version
+     */
+    private static boolean truncates(ISOFieldPackager field) {
+        try {
+            field.pack(new ISOField(0, sample(field.getLength() + 1)));
+            return true;
+        } catch (ISOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * check a codec packs and unpacks sample values exactly like the jPOS packager,
+     * including values longer than the field and values that are not digits.
+     */
+    private static boolean conforms(int fieldNumber, ISOFieldPackager field, ISOFieldPackager codec) {
+        int length = field.getLength();
+        String[] values = {sample(0), sample(1), sample(length / 2), sample(length), sample(length + 1),
+                text(length), text(length + 1)};
+        for (String value : values) {
+            try {
+                byte[] expected;
+                try {
+                    expected = field.pack(new ISOField(fieldNumber, value));
+                } catch (ISOException e) {
+                    // the codec has to reject what the jPOS packager rejects
+                    if (packs(codec, fieldNumber, value)) {
+                        return nonConforming(fieldNumber, field, "packs '" + value + "' that jPOS rejects");
+                    }
+                    continue;
+                }
+                byte[] actual = codec.pack(new ISOField(fieldNumber, value));
+                if (!Arrays.equals(expected, actual)) {
+                    return nonConforming(fieldNumber, field, "packs '" + value + "' differently");
+                }
+                ISOComponent expectedValue = new ISOField(fieldNumber);
+                ISOComponent actualValue = new ISOField(fieldNumber);
+                int expectedLength = field.unpack(expectedValue, expected, 0);
+                int actualLength = codec.unpack(actualValue, expected, 0);
+                if (expectedLength != actualLength || !expectedValue.getValue().equals(actualValue.getValue())) {
+                    return nonConforming(fieldNumber, field, "unpacks '" + value + "' differently");
+                }
+            } catch (ISOException e) {
+                return nonConforming(fieldNumber, field, "failed on '" + value + "': " + e.getMessage());
+            } catch (RuntimeException e) {
+                return nonConforming(fieldNumber, field, "failed on '" + value + "': " + e);
+            }
+        }
+        return true;
+    }
+
+    private static boolean nonConforming(int fieldNumber, ISOFieldPackager field, String reason) {
+        log.warn("Compiled codec of field " + fieldNumber + " (" + field.getClass().getName() + ") " + reason
+                + ", using the jPOS packager");
+        return false;
+    }
+
+    private static boolean packs(ISOFieldPackager codec, int fieldNumber, String value) {
+        try {
+            codec.pack(new ISOField(fieldNumber, value));
+            return true;
+        } catch (ISOException e) {
+            return false;
+        }
+    }
+
+    private static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(TEXT.charAt(i % TEXT.length()));
+        }
+        return text.toString();
+    }
+
+    private static String sample(int length) {
+        StringBuilder sample = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sample.append(SAMPLE.charAt(i % SAMPLE.length()));
+        }
+        return sample.toString();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.inbound.iso8583.packager;
+
+import junit.framework.TestCase;
+import org.jpos.iso.IF_CHAR;
+import org.jpos.iso.ISOBasePackager;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOField;
+import org.jpos.iso.ISOFieldPackager;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.packager.GenericPackager;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Checks the compiled codecs of jposdef.xml pack and unpack exactly like the jPOS
+ * {@link GenericPackager} the definition is parsed into.
+ */
+public class ISO8583FieldCodecsTest extends TestCase {
+    private static final String DEFINITION = "jposdef.xml";
+
+    private GenericPackager generic;
+    private GenericPackager compiled;
+
+    @Override
+    protected void setUp() throws Exception {
+        generic = load();
+        compiled = load();
+        ISO8583FieldCodecs.compile(compiled);
+    }
+
+    public void testAsciiFieldsAreCompiled() {
+        ISOFieldPackager[] fields = ISO8583FieldCodecs.getFieldPackagers(compiled);
+        assertTrue(fields[0] instanceof AsciiFixedCodec);
+        assertTrue(fields[2] instanceof AsciiVarCodec);
+        assertTrue(fields[37] instanceof AsciiFixedCodec);
+        assertTrue(fields[48] instanceof AsciiVarCodec);
+    }
+
+    public void testFieldsPackLikeGenericPackager() throws Exception {
+        ISOFieldPackager[] expectedFields = ISO8583FieldCodecs.getFieldPackagers(generic);
+        ISOFieldPackager[] actualFields = ISO8583FieldCodecs.getFieldPackagers(compiled);
+        for (int i = 0; i < actualFields.length; i++) {
+            if (!(actualFields[i] instanceof ISO8583FieldCodec)) {
+                continue;
+            }
+            int length = expectedFields[i].getLength();
+            String[] values = {"", "7", digits(length - 1), digits(length), digits(length + 1), text(length),
+                    text(length + 1), "12AB"};
+            for (String value : values) {
+                assertSameField(i, expectedFields[i], actualFields[i], value);
+            }
+        }
+    }
+
+    public void testOverLengthCharFieldMatchesGenericPackager() throws Exception {
+        ISOFieldPackager expected = ISO8583FieldCodecs.getFieldPackagers(generic)[41];
+        ISOFieldPackager actual = ISO8583FieldCodecs.getFieldPackagers(compiled)[41];
+        assertTrue(expected instanceof IF_CHAR);
+        assertSameField(41, expected, actual, "TERMINAL-0001");
+    }
+
+    public void testRequestPacksLikeGenericPackager() throws Exception {
+        ISOMsg request = new ISOMsg();
+        request.setMTI("0200");
+        request.set(2, "4111111111111111");
+        request.set(3, "000000");
+        request.set(4, "100");
+        request.set(7, "1017120000");
+        request.set(11, "1");
+        request.set(35, "4111111111111111=2512");
+        request.set(37, "000000123456");
+        request.set(41, "TERM1");
+        request.set(43, "Merchant name / city");
+        request.set(48, "private data with ; and = signs");
+        request.set(49, "840");
+        assertSameMessage(request);
+    }
+
+    public void testBoundaryValuesPackLikeGenericPackager() throws Exception {
+        ISOMsg response = new ISOMsg();
+        response.setMTI("0210");
+        response.set(2, digits(19));
+        response.set(3, digits(6));
+        response.set(11, digits(6));
+        response.set(36, text(104));
+        response.set(37, text(12));
+        response.set(39, "00");
+        response.set(41, "");
+        response.set(44, "");
+        response.set(48, text(999));
+        assertSameMessage(response);
+    }
+
+    public void testNetworkManagementPacksLikeGenericPackager() throws Exception {
+        ISOMsg echo = new ISOMsg();
+        echo.setMTI("0800");
+        echo.set(7, "1017120000");
+        echo.set(11, "000042");
+        echo.set(70, "301");
+        assertSameMessage(echo);
+    }
+
+    public void testNonDigitNumericValuesPackLikeGenericPackager() throws Exception {
+        ISOMsg request = new ISOMsg();
+        request.setMTI("0200");
+        request.set(3, "AB12");
+        request.set(11, "12 34");
+        request.set(32, "ACQ-1");
+        assertSameMessage(request);
+    }
+
+    public void testOverLengthValuesPackLikeGenericPackager() throws Exception {
+        ISOMsg request = new ISOMsg();
+        request.setMTI("0200");
+        request.set(3, "000000");
+        request.set(43, text(41));
+        ISOMsg copy = (ISOMsg) request.clone();
+        request.setPackager(generic);
+        copy.setPackager(compiled);
+        byte[] expected = packOrNull(request);
+        byte[] actual = packOrNull(copy);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    private void assertSameMessage(ISOMsg message) throws Exception {
+        ISOMsg copy = (ISOMsg) message.clone();
+        message.setPackager(generic);
+        copy.setPackager(compiled);
+        byte[] expected = message.pack();
+        byte[] actual = copy.pack();
+        assertEquals(new String(expected, "ISO-8859-1"), new String(actual, "ISO-8859-1"));
+
+        ISOMsg unpackedByGeneric = new ISOMsg();
+        unpackedByGeneric.setPackager(generic);
+        unpackedByGeneric.unpack(actual);
+        ISOMsg unpackedByCompiled = new ISOMsg();
+        unpackedByCompiled.setPackager(compiled);
+        unpackedByCompiled.unpack(expected);
+        for (int i = 0; i <= message.getMaxField(); i++) {
+            if (i != 1 && message.hasField(i)) {
+                assertEquals("field " + i, unpackedByGeneric.getString(i), unpackedByCompiled.getString(i));
+            }
+        }
+        assertEquals(unpackedByGeneric.getMaxField(), unpackedByCompiled.getMaxField());
+    }
+
+    private static void assertSameField(int fieldNumber, ISOFieldPackager expectedField,
+                                        ISOFieldPackager actualField, String value) throws ISOException {
+        String context = "field " + fieldNumber + " value '" + value + "'";
+        byte[] expected = packOrNull(expectedField, fieldNumber, value);
+        byte[] actual = packOrNull(actualField, fieldNumber, value);
+        if (expected == null) {
+            assertNull(context + " is rejected by jPOS", actual);
+            return;
+        }
+        assertNotNull(context + " is packed by jPOS", actual);
+        assertTrue(context, Arrays.equals(expected, actual));
+        ISOField expectedValue = new ISOField(fieldNumber);
+        ISOField actualValue = new ISOField(fieldNumber);
+        assertEquals(context, expectedField.unpack(expectedValue, expected, 0),
+                actualField.unpack(actualValue, expected, 0));
+        assertEquals(context, expectedValue.getValue(), actualValue.getValue());
+    }
+
+    private static byte[] packOrNull(ISOFieldPackager field, int fieldNumber, String value) {
+        try {
+            return field.pack(new ISOField(fieldNumber, value));
+        } catch (ISOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] packOrNull(ISOMsg message) {
+        try {
+            return message.pack();
+        } catch (ISOException e) {
+            return null;
+        }
+    }
+
+    private static GenericPackager load() throws ISOException {
+        InputStream definition = ISO8583FieldCodecsTest.class.getClassLoader().getResourceAsStream(DEFINITION);
+        assertNotNull(DEFINITION + " is on the classpath", definition);
+        return new GenericPackager(definition);
+    }
+
+    private static String digits(int length) {
+        StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            digits.append((char) ('0' + (i + 1) % 10));
+        }
+        return digits.toString();
+    }
+
+    private static String text(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append("Ab -/?9".charAt(i % 7));
+        }
+        return text.toString();
+    }
+}